@@ -42,48 +42,49 @@ final class Action
       return repeatCount;
    }
 
-   private static Point nextPositionCrab(Entity entity, WorldModel world,
-                                        Point destPos)
+   private static long nextPositionCrab(Entity entity, WorldModel world,
+                                        long destPos)
    {
-      int horiz = Integer.signum(destPos.x - entity.position.x);
-      Point newPos = new Point(entity.position.x + horiz,
-              entity.position.y);
+      int x = entity.getX();
+      int y = entity.getY();
+      int horiz = Integer.signum(Point.x(destPos) - x);
+      long newPos = Point.pack(x + horiz, y);
 
-      Optional<Entity> occupant = world.getOccupant(newPos);
+      Entity occupant = world.occupantAt(newPos);
 
       if (horiz == 0 ||
-              (occupant.isPresent() && !(occupant.get().getKind() == EntityKind.FISH)))
+              (occupant != null && !(occupant.getKind() == EntityKind.FISH)))
       {
-         int vert = Integer.signum(destPos.y - entity.position.y);
-         newPos = new Point(entity.position.x, entity.position.y + vert);
-         occupant = world.getOccupant(newPos);
+         int vert = Integer.signum(Point.y(destPos) - y);
+         newPos = Point.pack(x, y + vert);
+         occupant = world.occupantAt(newPos);
 
          if (vert == 0 ||
-                 (occupant.isPresent() && !(occupant.get().getKind() == EntityKind.FISH)))
+                 (occupant != null && !(occupant.getKind() == EntityKind.FISH)))
          {
-            newPos = entity.position;
+            newPos = entity.getPackedPosition();
          }
       }
 
       return newPos;
    }
 
-   private Point nextPositionOcto(Entity entity, WorldModel world,
-                                        Point destPos)
+   private long nextPositionOcto(Entity entity, WorldModel world,
+                                        long destPos)
    {
-      int horiz = Integer.signum(destPos.x - entity.position.x);
-      Point newPos = new Point(entity.position.x + horiz,
-              entity.position.y);
+      int x = entity.getX();
+      int y = entity.getY();
+      int horiz = Integer.signum(Point.x(destPos) - x);
+      long newPos = Point.pack(x + horiz, y);
 
       if (horiz == 0 || world.isOccupied(newPos))
       {
-         int vert = Integer.signum(destPos.y - entity.position.y);
-         newPos = new Point(entity.position.x,
-                 entity.position.y + vert);
+         int vert = Integer.signum(Point.y(destPos) - y);
+         newPos = Point.pack(x, y + vert);
 
          if (vert == 0 || world.isOccupied(newPos))
          {
-            newPos = entity.position;
+            newPos = entity.getPackedPosition();
          }
       }
 
@@ -93,7 +94,7 @@ final class Action
    public static boolean moveToCrab(Entity crab, WorldModel world,
                                     Entity target, EventScheduler scheduler)
    {
-      if (crab.position.adjacent(target.position))
+      if (Point.adjacent(crab.getPackedPosition(), target.getPackedPosition()))
       {
          world.removeEntity(target);
          scheduler.unscheduleAllEvents(target);
@@ -101,14 +102,15 @@ final class Action
       }
       else
       {
-         Point nextPos = Action.nextPositionCrab(crab, world, target.position);
+         long nextPos = Action.nextPositionCrab(crab, world,
+                 target.getPackedPosition());
 
-         if (!crab.position.equals(nextPos))
+         if (crab.getPackedPosition() != nextPos)
          {
-            Optional<Entity> occupant = world.getOccupant(nextPos);
-            if (occupant.isPresent())
+            Entity occupant = world.occupantAt(nextPos);
+            if (occupant != null)
             {
-               scheduler.unscheduleAllEvents(occupant.get());
+               scheduler.unscheduleAllEvents(occupant);
             }
 
             world.moveEntity(crab, nextPos);
@@ -120,20 +122,21 @@ final class Action
    public static boolean moveToFull(Entity octo, WorldModel world,
                                     Entity target, EventScheduler scheduler)
    {
-      if (octo.position.adjacent(target.position))
+      if (Point.adjacent(octo.getPackedPosition(), target.getPackedPosition()))
       {
          return true;
       }
       else
       {
-         Point nextPos = Action.nextPositionCrab(octo, world, target.position);
+         long nextPos = Action.nextPositionCrab(octo, world,
+                 target.getPackedPosition());
 
-         if (!octo.position.equals(nextPos))
+         if (octo.getPackedPosition() != nextPos)
          {
-            Optional<Entity> occupant = world.getOccupant(nextPos);
-            if (occupant.isPresent())
+            Entity occupant = world.occupantAt(nextPos);
+            if (occupant != null)
             {
-               scheduler.unscheduleAllEvents(occupant.get());
+               scheduler.unscheduleAllEvents(occupant);
             }
 
             world.moveEntity(octo, nextPos);
@@ -145,7 +148,7 @@ final class Action
    public static boolean moveToNotFull(Entity octo, WorldModel world,
                                        Entity target, EventScheduler scheduler)
    {
-      if (octo.position.adjacent(target.position))
+      if (Point.adjacent(octo.getPackedPosition(), target.getPackedPosition()))
       {
          octo.getResourceCount();
          world.removeEntity(target);
@@ -155,14 +158,15 @@ final class Action
       }
       else
       {
-         Point nextPos = Action.nextPositionCrab(octo, world, target.position);
+         long nextPos = Action.nextPositionCrab(octo, world,
+                 target.getPackedPosition());
 
-         if (!octo.position.equals(nextPos))
+         if (octo.getPackedPosition() != nextPos)
          {
-            Optional<Entity> occupant = world.getOccupant(nextPos);
-            if (occupant.isPresent())
+            Entity occupant = world.occupantAt(nextPos);
+            if (occupant != null)
             {
-               scheduler.unscheduleAllEvents(occupant.get());
+               scheduler.unscheduleAllEvents(occupant);
             }
 
             world.moveEntity(octo, nextPos);
@@ -171,6 +175,20 @@ final class Action
       }
    }
 
+   public static void moveAlongField(Entity octo, WorldModel world,
+                                     FlowField field, EventScheduler scheduler)
+   {
+      long nextPos = field.nextStep(octo.getPackedPosition(), world);
 
+      if (octo.getPackedPosition() != nextPos)
+      {
+         Entity occupant = world.occupantAt(nextPos);
+         if (occupant != null)
+         {
+            scheduler.unscheduleAllEvents(occupant);
+         }
 
+         world.moveEntity(octo, nextPos);
+      }
+   }
 }
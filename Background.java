@@ -13,6 +13,10 @@ final class Background
       this.images = images;
    }
 
+   public String getId() {
+      return id;
+   }
+
    public List<PImage> getImages() {
       return images;
    }
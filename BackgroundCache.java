@@ -0,0 +1,135 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/*
+BackgroundCache: the background layer pre-rendered in square chunks of tiles
+WorldView draws the few chunk images that overlap the viewport instead of one
+image per visible cell. Chunks are kept by their place in the world, so
+scrolling draws chunks that are already rendered, and are rendered on first
+use. As a WorldListener the cache throws a chunk away when one of its cells
+changes background, so only that chunk is rendered again. Each tile is
+clipped to its cell. Cells without a background image are left transparent.
+At most maxChunks chunks are kept, least recently drawn dropped first.
+ */
+
+final class BackgroundCache
+   implements WorldListener
+{
+   public static final int CHUNK_TILES = 8;
+   public static final int DEFAULT_MAX_CHUNKS = 64;
+
+   private final WorldModel world;
+   private final int tileWidth;
+   private final int tileHeight;
+   /* by packed (chunk column, chunk row), in order of last use */
+   private final Map<Long, PImage> chunks;
+   private int rendered;
+
+   public BackgroundCache(WorldModel world, int tileWidth, int tileHeight,
+      int maxChunks)
+   {
+      this.world = world;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+      this.chunks = new LinkedHashMap<Long, PImage>(16, 0.75f, true)
+      {
+         protected boolean removeEldestEntry(Map.Entry<Long, PImage> eldest)
+         {
+            return this.size() > maxChunks;
+         }
+      };
+   }
+
+   public synchronized int getChunkCount() {
+      return chunks.size();
+   }
+
+   /* how many chunks have been rendered, counting each re-render */
+   public synchronized int getRendered() {
+      return rendered;
+   }
+
+   public int getChunkWidth() {
+      return CHUNK_TILES * tileWidth;
+   }
+
+   public int getChunkHeight() {
+      return CHUNK_TILES * tileHeight;
+   }
+
+   /* the image of a chunk, by chunk column and row, rendered if need be */
+   public synchronized PImage chunkAt(int chunkCol, int chunkRow)
+   {
+      long key = Point.pack(chunkCol, chunkRow);
+      PImage chunk = this.chunks.get(key);
+      if (chunk == null)
+      {
+         chunk = this.render(chunkCol, chunkRow);
+         this.chunks.put(key, chunk);
+         this.rendered++;
+      }
+      return chunk;
+   }
+
+   private PImage render(int chunkCol, int chunkRow)
+   {
+      PImage chunk = new PImage(this.getChunkWidth(), this.getChunkHeight(),
+              PApplet.ARGB);
+      int left = chunkCol * CHUNK_TILES;
+      int top = chunkRow * CHUNK_TILES;
+
+      for (int row = 0; row < CHUNK_TILES; row++)
+      {
+         for (int col = 0; col < CHUNK_TILES; col++)
+         {
+            PImage tile = this.world.backgroundImageAt(left + col, top + row);
+            if (tile != null)
+            {
+               this.copyTile(tile, chunk, col * this.tileWidth,
+                       row * this.tileHeight);
+            }
+         }
+      }
+      chunk.updatePixels();
+      return chunk;
+   }
+
+   /* frames without an alpha channel are made opaque, as the chunk has one */
+   private void copyTile(PImage tile, PImage chunk, int x, int y)
+   {
+      tile.loadPixels();
+      int opaque = tile.format == PApplet.RGB ? 0xff000000 : 0;
+      int width = Math.min(tile.width, this.tileWidth);
+      int height = Math.min(tile.height, this.tileHeight);
+
+      for (int row = 0; row < height; row++)
+      {
+         int source = row * tile.width;
+         int target = (y + row) * chunk.width + x;
+         for (int col = 0; col < width; col++)
+         {
+            chunk.pixels[target + col] = tile.pixels[source + col] | opaque;
+         }
+      }
+   }
+
+   public void entityAdded(Entity entity)
+   {
+   }
+
+   public void entityRemoved(Entity entity, long pos)
+   {
+   }
+
+   public void entityMoved(Entity entity, long from, long to)
+   {
+   }
+
+   public synchronized void backgroundChanged(int x, int y)
+   {
+      this.chunks.remove(Point.pack(x / CHUNK_TILES, y / CHUNK_TILES));
+   }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+ChunkedGrid: a sparse grid for very large, mostly empty maps
+The world is split into 64x64 chunks that are only allocated once a cell in
+them is set to something other than the default value, and are dropped again
+once every cell is back to the default. Unallocated chunks all read as the
+shared default, so memory grows with the populated area rather than the map.
+A dropped chunk is kept as a spare, up to a few of them, and handed out for
+the next allocation, so an entity stepping back and forth over a chunk edge
+does not fill a fresh chunk every step.
+Two threads must not set cells of the same chunk at once; a region-parallel
+tick keeps to that by aligning its regions to CHUNK_SIZE.
+ */
+
+final class ChunkedGrid<T>
+   implements WorldGrid<T>
+{
+   private static final int CHUNK_BITS = 6;
+   public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int MAX_SPARE_CHUNKS = 16;
+
+   private final T defaultValue;
+   private final int chunksAcross;
+   private final Object[][] chunks;
+   private final int[] populated;
+   /* chunks back at the default everywhere; with allocatedChunks, guarded
+      by spareChunks, as regions allocate and drop chunks concurrently */
+   private final ArrayDeque<Object[]> spareChunks;
+   private int allocatedChunks;
+
+   public ChunkedGrid(int numRows, int numCols, T defaultValue)
+   {
+      this.defaultValue = defaultValue;
+      this.chunksAcross = (numCols + CHUNK_MASK) >> CHUNK_BITS;
+
+      int chunksDown = (numRows + CHUNK_MASK) >> CHUNK_BITS;
+      this.chunks = new Object[chunksDown * this.chunksAcross][];
+      this.populated = new int[chunksDown * this.chunksAcross];
+      this.spareChunks = new ArrayDeque<>();
+   }
+
+   public int getAllocatedChunks()
+   {
+      synchronized (this.spareChunks)
+      {
+         return this.allocatedChunks;
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   public T get(int x, int y)
+   {
+      Object[] chunk = this.chunks[this.chunkIndex(x, y)];
+
+      return chunk == null ? this.defaultValue : (T)chunk[cellIndex(x, y)];
+   }
+
+   public void set(int x, int y, T value)
+   {
+      int index = this.chunkIndex(x, y);
+      Object[] chunk = this.chunks[index];
+
+      if (chunk == null)
+      {
+         if (value == this.defaultValue)
+         {
+            return;
+         }
+
+         chunk = this.allocateChunk();
+         this.chunks[index] = chunk;
+      }
+
+      Object old = chunk[cellIndex(x, y)];
+      chunk[cellIndex(x, y)] = value;
+
+      if (old == this.defaultValue && value != this.defaultValue)
+      {
+         this.populated[index]++;
+      }
+      else if (old != this.defaultValue && value == this.defaultValue &&
+              --this.populated[index] == 0)
+      {
+         this.chunks[index] = null;
+         this.dropChunk(chunk);
+      }
+   }
+
+   private Object[] allocateChunk()
+   {
+      synchronized (this.spareChunks)
+      {
+         this.allocatedChunks++;
+         Object[] spare = this.spareChunks.poll();
+         if (spare != null)
+         {
+            return spare;
+         }
+      }
+
+      Object[] chunk = new Object[CHUNK_SIZE * CHUNK_SIZE];
+      Arrays.fill(chunk, this.defaultValue);
+      return chunk;
+   }
+
+   /* every cell of chunk is back at the default */
+   private void dropChunk(Object[] chunk)
+   {
+      synchronized (this.spareChunks)
+      {
+         this.allocatedChunks--;
+         if (this.spareChunks.size() < MAX_SPARE_CHUNKS)
+         {
+            this.spareChunks.push(chunk);
+         }
+      }
+   }
+
+   private int chunkIndex(int x, int y)
+   {
+      return (y >> CHUNK_BITS) * this.chunksAcross + (x >> CHUNK_BITS);
+   }
+
+   private static int cellIndex(int x, int y)
+   {
+      return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+   }
+}
@@ -0,0 +1,8 @@
+/*
+Clock: where EventScheduler gets the current time from when stamping events
+ */
+
+interface Clock
+{
+   long currentTimeMillis();
+}
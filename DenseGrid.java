@@ -0,0 +1,32 @@
+import java.util.Arrays;
+
+/*
+DenseGrid: a plain two-dimensional array, the right choice for small maps
+ */
+
+final class DenseGrid<T>
+   implements WorldGrid<T>
+{
+   private final Object[][] cells;
+
+   public DenseGrid(int numRows, int numCols, T defaultValue)
+   {
+      this.cells = new Object[numRows][numCols];
+
+      for (int row = 0; row < numRows; row++)
+      {
+         Arrays.fill(this.cells[row], defaultValue);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   public T get(int x, int y)
+   {
+      return (T)this.cells[y][x];
+   }
+
+   public void set(int x, int y, T value)
+   {
+      this.cells[y][x] = value;
+   }
+}
@@ -0,0 +1,93 @@
+import java.util.BitSet;
+
+/*
+DirtyTiles: the cells of a Viewport whose drawing is out of date
+As a WorldListener it marks the cells where entities appear, disappear or
+move and where the background changes. Only cells inside the viewport are
+tracked; shifting the viewport marks everything, since every cell then
+shows a different part of the world. Listeners can be called from several
+region threads at once, or from the simulation thread while the drawing
+thread shifts the view, so the set and the view's origin are both guarded
+by this object. The origin is a copy of the viewport's, moved by shift.
+ */
+
+final class DirtyTiles
+   implements WorldListener
+{
+   private final int numRows;
+   private final int numCols;
+   /* the world cell at the viewport's top left corner */
+   private int col;
+   private int row;
+   /* viewport cells, row * numCols + col */
+   private final BitSet dirty;
+   private boolean all;
+
+   public DirtyTiles(Viewport viewport)
+   {
+      this.numRows = viewport.getNumRows();
+      this.numCols = viewport.getNumCols();
+      this.col = viewport.getCol();
+      this.row = viewport.getRow();
+      this.dirty = new BitSet(this.numRows * this.numCols);
+      this.all = true;
+   }
+
+   /* marks a world cell, if it is in view */
+   public synchronized void mark(int x, int y)
+   {
+      int viewCol = x - this.col;
+      int viewRow = y - this.row;
+      if (!this.all && viewCol >= 0 && viewCol < this.numCols
+              && viewRow >= 0 && viewRow < this.numRows)
+      {
+         this.dirty.set(viewRow * this.numCols + viewCol);
+      }
+   }
+
+   /* follows the viewport to a new origin, which marks every cell */
+   public synchronized void shift(int col, int row)
+   {
+      this.col = col;
+      this.row = row;
+      this.all = true;
+      this.dirty.clear();
+   }
+
+   /*
+      Adds the dirty cells to the given set and clears them here; returns
+      true instead when the whole viewport has to be redrawn.
+   */
+   public synchronized boolean drainInto(BitSet cells)
+   {
+      if (this.all)
+      {
+         this.all = false;
+         return true;
+      }
+      cells.or(this.dirty);
+      this.dirty.clear();
+      return false;
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      this.mark(entity.getX(), entity.getY());
+   }
+
+   public void entityRemoved(Entity entity, long pos)
+   {
+      this.mark(Point.x(pos), Point.y(pos));
+   }
+
+   public void entityMoved(Entity entity, long from, long to)
+   {
+      this.mark(Point.x(from), Point.y(from));
+      this.mark(Point.x(to), Point.y(to));
+   }
+
+   public void backgroundChanged(int x, int y)
+   {
+      this.mark(x, y);
+   }
+}
@@ -10,13 +10,13 @@ final class Entity
 {
    private final EntityKind kind;
    private final String id;
-   public Point position;
    private final List<PImage> images;
-   private int imageIndex;
    private final int resourceLimit;
-   private int resourceCount;
    private final int actionPeriod;
    private final int animationPeriod;
+   private long sequence;
+   /* in fields of its own, or in a slot of an EntityStore while attached */
+   private EntityState state;
 
    public Entity(EntityKind kind, String id, Point position,
       List<PImage> images, int resourceLimit, int resourceCount,
@@ -24,13 +24,11 @@ final class Entity
    {
       this.kind = kind;
       this.id = id;
-      this.position = position;
       this.images = images;
-      this.imageIndex = 0;
       this.resourceLimit = resourceLimit;
-      this.resourceCount = resourceCount;
       this.actionPeriod = actionPeriod;
       this.animationPeriod = animationPeriod;
+      this.state = new FieldState(position.pack(), resourceCount);
    }
 
    public EntityKind getKind() {
@@ -41,23 +39,178 @@ final class Entity
       return id;
    }
 
+   public Point getPosition() {
+      return Point.unpack(getPackedPosition());
+   }
+
+   public long getPackedPosition() {
+      return state.getPosition();
+   }
+
+   public int getX() {
+      return Point.x(getPackedPosition());
+   }
+
+   public int getY() {
+      return Point.y(getPackedPosition());
+   }
+
+   public void setPosition(long position)
+   {
+      this.state.setPosition(position);
+   }
+
    public List<PImage> getImages() {
       return images;
    }
 
+   /*
+      The stored frame; while a timed animation runs this is the frame it
+      started from.
+   */
    public int getImageIndex() {
-      return imageIndex;
+      return state.getImageIndex();
+   }
+
+   /* the frame to show at the given time */
+   public int getImageIndex(long time)
+   {
+      EntityState state = this.state;
+      return animationFrame(state.getImageIndex(), this.images.size(), time,
+              state.getAnimationStart(), state.getFrameMillis(),
+              state.getAnimationSteps());
+   }
+
+   /*
+      The frame reached by an animation that advances every frameMillis
+      after start, stopping after steps advances (never, for 0); frameMillis
+      of 0 means the frame is not animated.
+   */
+   static int animationFrame(int startFrame, int frames, long time,
+      long start, int frameMillis, int steps)
+   {
+      if (frameMillis == 0 || time < start)
+      {
+         return startFrame;
+      }
+      long advanced = (time - start) / frameMillis;
+      if (steps > 0)
+      {
+         advanced = Math.min(advanced, steps);
+      }
+      return (int)((startFrame + advanced) % frames);
+   }
+
+   public long getAnimationStart() {
+      return state.getAnimationStart();
+   }
+
+   public int getFrameMillis() {
+      return state.getFrameMillis();
+   }
+
+   public int getAnimationSteps() {
+      return state.getAnimationSteps();
+   }
+
+   public boolean isTimedAnimation()
+   {
+      return this.state.getFrameMillis() != 0;
+   }
+
+   /*
+      Derives the frame from the clock: from start it advances every
+      frameMillis, steps times or endlessly for 0, beginning at the frame
+      shown at start.
+   */
+   public void startAnimation(long start, int frameMillis, int steps)
+   {
+      this.state.setImageIndex(this.getImageIndex(start));
+      this.state.setAnimation(start, frameMillis, steps);
+   }
+
+   /*
+      Keeps the last frame of a finished timed animation; does nothing if
+      the animation was restarted and has not run its course yet.
+   */
+   public void finishAnimation(long time)
+   {
+      int frameMillis = this.state.getFrameMillis();
+      int steps = this.state.getAnimationSteps();
+      if (frameMillis == 0 || steps == 0
+              || time < this.state.getAnimationStart() + (long)steps * frameMillis)
+      {
+         return;
+      }
+
+      this.state.setImageIndex(this.getImageIndex(time));
+      this.state.setAnimation(0, 0, 0);
+   }
+
+   public int getResourceCount()
+   {
+      int count = this.state.getResourceCount();
+      this.state.setResourceCount(count + 1);
+      return count;
+   }
+
+   /* the current count, without the increment getResourceCount applies */
+   public int peekResourceCount() {
+      return state.getResourceCount();
+   }
+
+   public int getResourceLimit() {
+      return resourceLimit;
+   }
+
+   /*
+      Puts back the frame and resource count of a saved entity; called
+      once it has been added to its world.
+   */
+   public void restoreState(int imageIndex, int resourceCount)
+   {
+      this.state.setImageIndex(imageIndex % this.images.size());
+      this.state.setResourceCount(resourceCount);
+   }
+
+   /*
+      Moves the entity's state into a fresh slot of the store; from then on
+      the store is the only copy until detach is called.
+   */
+   public void attach(EntityStore store)
+   {
+      this.state = store.add(this, this.state);
+   }
+
+   public void detach()
+   {
+      if (this.state instanceof EntityStore.Slot)
+      {
+         EntityStore.Slot slot = (EntityStore.Slot)this.state;
+         this.state = new FieldState(slot);
+         slot.free();
+      }
+   }
+
+   /*
+      The order in which the entity was added to its WorldModel, used to
+      break ties between equally near entities.
+   */
+   public long getSequence() {
+      return sequence;
    }
 
-   public int getResourceCount() {
-      return resourceCount++;
+   public void setSequence(long sequence)
+   {
+      this.sequence = sequence;
    }
 
    public int getActionPeriod() {
       return actionPeriod;
    }
 
-   public int getAnimationPeriod()
+   /* whether this kind runs animation actions and has an animation period */
+   public boolean isAnimated()
    {
       switch (this.kind)
       {
@@ -66,17 +219,27 @@ final class Entity
          case CRAB:
          case QUAKE:
          case ATLANTIS:
-            return this.animationPeriod;
+            return true;
          default:
-            throw new UnsupportedOperationException(
-                    String.format("getAnimationPeriod not supported for %s",
-                            this.kind));
+            return false;
+      }
+   }
+
+   public int getAnimationPeriod()
+   {
+      if (!this.isAnimated())
+      {
+         throw new UnsupportedOperationException(
+                 String.format("getAnimationPeriod not supported for %s",
+                         this.kind));
       }
+      return this.animationPeriod;
    }
 
    public void nextImage()
    {
-      this.imageIndex = (this.imageIndex + 1) % this.images.size();
+      this.state.setImageIndex(
+              (this.state.getImageIndex() + 1) % this.images.size());
    }
 
    public Action createActivityAction(WorldModel world,
@@ -94,7 +257,7 @@ final class Entity
                                     EventScheduler scheduler, ImageStore imageStore)
    {
       Entity octo = world.createOctoNotFull(this.id, this.resourceLimit,
-              this.position, this.actionPeriod, this.animationPeriod,
+              this.getPosition(), this.actionPeriod, this.animationPeriod,
               this.images);
 
       world.removeEntity(this);
@@ -107,10 +270,10 @@ final class Entity
    public  boolean transformNotFull(WorldModel world,
                                           EventScheduler scheduler, ImageStore imageStore)
    {
-      if (this.resourceCount >= this.resourceLimit)
+      if (this.state.getResourceCount() >= this.resourceLimit)
       {
          Entity octo = world.createOctoFull(this.id, this.resourceLimit,
-                 this.position, this.actionPeriod, this.animationPeriod,
+                 this.getPosition(), this.actionPeriod, this.animationPeriod,
                  this.images);
 
          world.removeEntity(this);
@@ -124,9 +287,78 @@ final class Entity
 
       return false;
    }
+   /* the state of an entity that is not in an EntityStore */
+   private static final class FieldState
+      implements EntityState
+   {
+      private long position;
+      private int imageIndex;
+      private int resourceCount;
+      private long animationStart;
+      /* while frameMillis is not 0 the frame is derived from the clock */
+      private int frameMillis;
+      private int animationSteps;
 
+      FieldState(long position, int resourceCount)
+      {
+         this.position = position;
+         this.resourceCount = resourceCount;
+      }
 
+      FieldState(EntityState from)
+      {
+         this.position = from.getPosition();
+         this.imageIndex = from.getImageIndex();
+         this.resourceCount = from.getResourceCount();
+         this.animationStart = from.getAnimationStart();
+         this.frameMillis = from.getFrameMillis();
+         this.animationSteps = from.getAnimationSteps();
+      }
+
+      public long getPosition() {
+         return position;
+      }
+
+      public void setPosition(long position)
+      {
+         this.position = position;
+      }
 
+      public int getImageIndex() {
+         return imageIndex;
+      }
+
+      public void setImageIndex(int imageIndex)
+      {
+         this.imageIndex = imageIndex;
+      }
 
+      public int getResourceCount() {
+         return resourceCount;
+      }
 
+      public void setResourceCount(int resourceCount)
+      {
+         this.resourceCount = resourceCount;
+      }
+
+      public long getAnimationStart() {
+         return animationStart;
+      }
+
+      public int getFrameMillis() {
+         return frameMillis;
+      }
+
+      public int getAnimationSteps() {
+         return animationSteps;
+      }
+
+      public void setAnimation(long start, int frameMillis, int steps)
+      {
+         this.animationStart = start;
+         this.frameMillis = frameMillis;
+         this.animationSteps = steps;
+      }
+   }
 }
@@ -0,0 +1,29 @@
+/*
+EntityState: the part of an Entity that changes while it lives
+An entity keeps this state in fields of its own until it is added to a
+world with an EntityStore, which moves it into a slot of the store's
+arrays. Entity reads and writes it through this one interface either way.
+ */
+
+interface EntityState
+{
+   long getPosition();
+
+   void setPosition(long position);
+
+   int getImageIndex();
+
+   void setImageIndex(int imageIndex);
+
+   int getResourceCount();
+
+   void setResourceCount(int resourceCount);
+
+   long getAnimationStart();
+
+   int getFrameMillis();
+
+   int getAnimationSteps();
+
+   void setAnimation(long start, int frameMillis, int steps);
+}
@@ -0,0 +1,277 @@
+import java.util.Arrays;
+
+/*
+EntityStore: structure-of-arrays storage for the entities of a WorldModel
+Kinds, packed positions, image indices, resource counts and the timing of
+clock-driven animations live in parallel primitive arrays indexed by a dense
+slot, next to a reference to the Entity in each slot. An attached Entity
+keeps a Slot as its EntityState, which is just a handle onto those arrays;
+the frames themselves stay with the Entity, so the store holds no images of
+its own. count and RenderSnapshot.capture walk the arrays front to back
+instead of chasing Entity objects around the heap.
+The arrays are split into fixed-size pages that never move once allocated,
+and freed slots are reused rather than compacted, so an entity's slot stays
+put for its whole life. That lets entities in different regions of a
+parallel tick update their own slots without any locking.
+ */
+
+final class EntityStore
+{
+   private static final int PAGE_BITS = 10;
+   private static final int PAGE_SIZE = 1 << PAGE_BITS;
+   private static final int PAGE_MASK = PAGE_SIZE - 1;
+   private static final byte NO_KIND = -1;
+
+   private byte[][] kinds;
+   private long[][] positions;
+   private int[][] imageIndices;
+   private int[][] resourceCounts;
+   private long[][] animationStarts;
+   private int[][] frameMillis;
+   private int[][] animationSteps;
+   private Entity[][] handles;
+
+   private int highWater;
+   private int[] freeSlots;
+   private int freeCount;
+
+   public EntityStore()
+   {
+      this.kinds = new byte[0][];
+      this.positions = new long[0][];
+      this.imageIndices = new int[0][];
+      this.resourceCounts = new int[0][];
+      this.animationStarts = new long[0][];
+      this.frameMillis = new int[0][];
+      this.animationSteps = new int[0][];
+      this.handles = new Entity[0][];
+      this.freeSlots = new int[PAGE_SIZE];
+   }
+
+   /*
+      One past the highest slot ever handed out; bulk loops run up to here
+      and skip slots for which isLive is false.
+   */
+   public int getHighWater() {
+      return highWater;
+   }
+
+   /* a fresh slot holding a copy of the given state */
+   public Slot add(Entity entity, EntityState from)
+   {
+      int slot;
+      if (this.freeCount > 0)
+      {
+         slot = this.freeSlots[--this.freeCount];
+      }
+      else
+      {
+         if ((this.highWater >> PAGE_BITS) == this.kinds.length)
+         {
+            this.addPage();
+         }
+         slot = this.highWater++;
+      }
+
+      int page = slot >> PAGE_BITS;
+      int index = slot & PAGE_MASK;
+      this.kinds[page][index] = (byte)entity.getKind().ordinal();
+      this.positions[page][index] = from.getPosition();
+      this.imageIndices[page][index] = from.getImageIndex();
+      this.resourceCounts[page][index] = from.getResourceCount();
+      this.animationStarts[page][index] = from.getAnimationStart();
+      this.frameMillis[page][index] = from.getFrameMillis();
+      this.animationSteps[page][index] = from.getAnimationSteps();
+      this.handles[page][index] = entity;
+
+      return new Slot(this, slot);
+   }
+
+   public void remove(int slot)
+   {
+      int page = slot >> PAGE_BITS;
+      int index = slot & PAGE_MASK;
+      this.kinds[page][index] = NO_KIND;
+      this.handles[page][index] = null;
+
+      if (this.freeCount == this.freeSlots.length)
+      {
+         this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+      }
+      this.freeSlots[this.freeCount++] = slot;
+   }
+
+   public boolean isLive(int slot)
+   {
+      return this.kinds[slot >> PAGE_BITS][slot & PAGE_MASK] != NO_KIND;
+   }
+
+   public Entity getHandle(int slot)
+   {
+      return this.handles[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public long getPosition(int slot)
+   {
+      return this.positions[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public void setPosition(int slot, long position)
+   {
+      this.positions[slot >> PAGE_BITS][slot & PAGE_MASK] = position;
+   }
+
+   public int getImageIndex(int slot)
+   {
+      return this.imageIndices[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public void setImageIndex(int slot, int imageIndex)
+   {
+      this.imageIndices[slot >> PAGE_BITS][slot & PAGE_MASK] = imageIndex;
+   }
+
+   public void setAnimation(int slot, long start, int frameMillis, int steps)
+   {
+      int page = slot >> PAGE_BITS;
+      int index = slot & PAGE_MASK;
+      this.animationStarts[page][index] = start;
+      this.frameMillis[page][index] = frameMillis;
+      this.animationSteps[page][index] = steps;
+   }
+
+   public long getAnimationStart(int slot)
+   {
+      return this.animationStarts[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public int getFrameMillis(int slot)
+   {
+      return this.frameMillis[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public int getAnimationSteps(int slot)
+   {
+      return this.animationSteps[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public int getResourceCount(int slot)
+   {
+      return this.resourceCounts[slot >> PAGE_BITS][slot & PAGE_MASK];
+   }
+
+   public void setResourceCount(int slot, int resourceCount)
+   {
+      this.resourceCounts[slot >> PAGE_BITS][slot & PAGE_MASK] = resourceCount;
+   }
+
+   public int count(EntityKind kind)
+   {
+      byte wanted = (byte)kind.ordinal();
+      int count = 0;
+
+      for (int page = 0; page < this.kinds.length; page++)
+      {
+         byte[] pageKinds = this.kinds[page];
+         int end = Math.min(PAGE_SIZE, this.highWater - (page << PAGE_BITS));
+
+         for (int index = 0; index < end; index++)
+         {
+            if (pageKinds[index] == wanted)
+            {
+               count++;
+            }
+         }
+      }
+
+      return count;
+   }
+
+   private void addPage()
+   {
+      int pages = this.kinds.length + 1;
+      this.kinds = Arrays.copyOf(this.kinds, pages);
+      this.positions = Arrays.copyOf(this.positions, pages);
+      this.imageIndices = Arrays.copyOf(this.imageIndices, pages);
+      this.resourceCounts = Arrays.copyOf(this.resourceCounts, pages);
+      this.animationStarts = Arrays.copyOf(this.animationStarts, pages);
+      this.frameMillis = Arrays.copyOf(this.frameMillis, pages);
+      this.animationSteps = Arrays.copyOf(this.animationSteps, pages);
+      this.handles = Arrays.copyOf(this.handles, pages);
+
+      int page = pages - 1;
+      this.kinds[page] = new byte[PAGE_SIZE];
+      Arrays.fill(this.kinds[page], NO_KIND);
+      this.positions[page] = new long[PAGE_SIZE];
+      this.imageIndices[page] = new int[PAGE_SIZE];
+      this.resourceCounts[page] = new int[PAGE_SIZE];
+      this.animationStarts[page] = new long[PAGE_SIZE];
+      this.frameMillis[page] = new int[PAGE_SIZE];
+      this.animationSteps[page] = new int[PAGE_SIZE];
+      this.handles[page] = new Entity[PAGE_SIZE];
+   }
+
+   /* an attached entity's state, read and written in the store's arrays */
+   static final class Slot
+      implements EntityState
+   {
+      private final EntityStore store;
+      private final int slot;
+
+      Slot(EntityStore store, int slot)
+      {
+         this.store = store;
+         this.slot = slot;
+      }
+
+      /* gives the slot back to the store; the handle is dead afterwards */
+      public void free()
+      {
+         this.store.remove(this.slot);
+      }
+
+      public long getPosition() {
+         return store.getPosition(slot);
+      }
+
+      public void setPosition(long position)
+      {
+         this.store.setPosition(this.slot, position);
+      }
+
+      public int getImageIndex() {
+         return store.getImageIndex(slot);
+      }
+
+      public void setImageIndex(int imageIndex)
+      {
+         this.store.setImageIndex(this.slot, imageIndex);
+      }
+
+      public int getResourceCount() {
+         return store.getResourceCount(slot);
+      }
+
+      public void setResourceCount(int resourceCount)
+      {
+         this.store.setResourceCount(this.slot, resourceCount);
+      }
+
+      public long getAnimationStart() {
+         return store.getAnimationStart(slot);
+      }
+
+      public int getFrameMillis() {
+         return store.getFrameMillis(slot);
+      }
+
+      public int getAnimationSteps() {
+         return store.getAnimationSteps(slot);
+      }
+
+      public void setAnimation(long start, int frameMillis, int steps)
+      {
+         this.store.setAnimation(this.slot, start, frameMillis, steps);
+      }
+   }
+}
@@ -3,6 +3,8 @@ final class Event
    private final Action action;
    private final long time;
    private final Entity entity;
+   private boolean cancelled;
+   private boolean dispatched;
 
    public Event(Action action, long time, Entity entity)
    {
@@ -22,4 +24,26 @@ final class Event
    public Entity getEntity() {
       return entity;
    }
+
+   public boolean isCancelled() {
+      return cancelled;
+   }
+
+   public void cancel()
+   {
+      this.cancelled = true;
+   }
+
+   public boolean isDispatched() {
+      return dispatched;
+   }
+
+   /*
+      Marks an event that has left its EventQueue as part of a batch but has
+      not run yet, so cancelling it no longer goes through the queue.
+   */
+   public void dispatch()
+   {
+      this.dispatched = true;
+   }
 }
@@ -0,0 +1,30 @@
+/*
+EventQueue: the storage engine behind EventScheduler, holding every pending Event
+until its time comes up
+ */
+
+interface EventQueue
+{
+   void add(Event event);
+
+   /*
+      Marks the event so it never fires. Engines only tombstone the event
+      here and reclaim its storage lazily, so cancelling is O(1).
+   */
+   void cancel(Event event);
+
+   /*
+      Removes and returns the next live event whose time is strictly before
+      the given time, or null if no such event is pending.
+   */
+   Event pollBefore(long time);
+
+   /*
+      The time of the earliest live event, or Long.MAX_VALUE if there is none.
+   */
+   long nextTime();
+
+   int size();
+
+   boolean isEmpty();
+}
@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /*
@@ -7,22 +8,115 @@ EventScheduler: ideally our way of controlling what happens in our virtual world
 
 final class EventScheduler
 {
-   private final PriorityQueue<Event> eventQueue;
+   private final EventQueue eventQueue;
    private final Map<Entity, List<Event>> pendingEvents;
    private final double timeScale;
+   private final Clock clock;
+   private RegionTickExecutor tickExecutor;
+   private final List<SchedulerListener> listeners;
+   private boolean timedAnimation;
 
    public EventScheduler(double timeScale)
    {
-      this.eventQueue = new PriorityQueue<>(new EventComparator());
+      this(timeScale, new HeapEventQueue());
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue)
+   {
+      this(timeScale, eventQueue, new WallClock());
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue, Clock clock)
+   {
+      this.eventQueue = eventQueue;
       this.pendingEvents = new HashMap<>();
       this.timeScale = timeScale;
+      this.clock = clock;
+      this.listeners = new ArrayList<>();
+   }
+
+   public Clock getClock() {
+      return clock;
+   }
+
+   /*
+      Runs each tick's due events region by region on a ForkJoinPool; with a
+      single region (or none) ticks run on the calling thread as before.
+   */
+   public void setTickExecutor(RegionTickExecutor tickExecutor)
+   {
+      this.tickExecutor = tickExecutor;
+   }
+
+   /*
+      Derives animation frames from the clock instead of advancing them with
+      an ANIMATION event every period: endless animations then have no event
+      at all, and finite ones a single event that settles their last frame.
+   */
+   public void setTimedAnimation(boolean timedAnimation)
+   {
+      this.timedAnimation = timedAnimation;
+   }
+
+   public boolean isTimedAnimation() {
+      return timedAnimation;
+   }
+
+   public synchronized int getQueueSize()
+   {
+      return this.eventQueue.size();
    }
 
-   private void scheduleEvent(
+   public synchronized void addListener(SchedulerListener listener)
+   {
+      this.listeners.add(listener);
+   }
+
+   public synchronized void removeListener(SchedulerListener listener)
+   {
+      this.listeners.remove(listener);
+   }
+
+   /* a copy of the entity's pending events, in the order they were added */
+   public synchronized List<Event> getPendingEvents(Entity entity)
+   {
+      List<Event> pending = this.pendingEvents.get(entity);
+      return pending == null ? Collections.emptyList() : new ArrayList<>(pending);
+   }
+
+   private synchronized void scheduleEvent(
                                     Entity entity, Action action, long afterPeriod)
    {
-      long time = System.currentTimeMillis() +
-              (long)(afterPeriod * this.timeScale);
+      this.addEvent(entity, action, this.clock.currentTimeMillis() +
+              (long)(afterPeriod * this.timeScale));
+   }
+
+   /*
+      Schedules an action at an absolute time on this scheduler's clock,
+      without applying the time scale; used to bring back saved events.
+      With timed animation a saved ANIMATION event restarts the animation
+      it ends, and an endless one (repeat count 0) needs no event at all.
+   */
+   public synchronized void scheduleEventAt(Entity entity, Action action,
+      long time)
+   {
+      if (this.timedAnimation && action.getKind() == ActionKind.ANIMATION)
+      {
+         int frameMillis = this.frameMillis(entity);
+         int steps = action.getRepeatCount();
+         if (steps == 0)
+         {
+            entity.startAnimation(time - frameMillis, frameMillis, 0);
+            return;
+         }
+         entity.startAnimation(time - (long)steps * frameMillis, frameMillis,
+                 steps);
+      }
+      this.addEvent(entity, action, time);
+   }
+
+   private synchronized void addEvent(Entity entity, Action action, long time)
+   {
       Event event = new Event(action, time, entity);
 
       this.eventQueue.add(event);
@@ -32,9 +126,15 @@ final class EventScheduler
               new LinkedList<>());
       pending.add(event);
       this.pendingEvents.put(entity, pending);
+
+      for (SchedulerListener listener : this.listeners)
+      {
+         listener.eventScheduled(event);
+      }
    }
 
-   private void removePendingEvent(
+   /* drops an event that is about to run from its entity's pending list */
+   private synchronized void removePendingEvent(
                                          Event event)
    {
       List<Event> pending = this.pendingEvents.get(event.getEntity());
@@ -42,11 +142,26 @@ final class EventScheduler
       if (pending != null)
       {
          pending.remove(event);
+         if (pending.isEmpty())
+         {
+            this.pendingEvents.remove(event.getEntity());
+         }
+      }
+
+      for (SchedulerListener listener : this.listeners)
+      {
+         listener.eventRemoved(event, true);
       }
    }
 
    private void executeAnimationAction(Action action)
    {
+      if (this.timedAnimation)
+      {
+         action.getEntity().finishAnimation(this.clock.currentTimeMillis());
+         return;
+      }
+
       action.getEntity() .nextImage();
 
       if (action.getRepeatCount() != 1)
@@ -58,7 +173,70 @@ final class EventScheduler
       }
    }
 
-   public void unscheduleAllEvents(
+   /*
+      Starts an entity's animation, for repeatCount frames or endlessly for
+      0: one ANIMATION event per frame, or with timed animation a frame
+      derived from the clock and, for a finite animation, one event at the
+      end.
+   */
+   private void startAnimation(Entity entity, int repeatCount)
+   {
+      if (!this.timedAnimation)
+      {
+         this.scheduleEvent(entity, entity.createAnimationAction(repeatCount),
+                 entity.getAnimationPeriod());
+         return;
+      }
+
+      int frameMillis = this.frameMillis(entity);
+      long now = this.clock.currentTimeMillis();
+      entity.startAnimation(now, frameMillis, repeatCount);
+      if (repeatCount > 0)
+      {
+         this.addEvent(entity, entity.createAnimationAction(repeatCount),
+                 now + (long)repeatCount * frameMillis);
+      }
+   }
+
+   /* the scaled animation period, as scheduleEvent would apply it */
+   private int frameMillis(Entity entity)
+   {
+      return (int)Math.max(1,
+              (long)(entity.getAnimationPeriod() * this.timeScale));
+   }
+
+   /*
+      Restarts the endless animation of a restored octo or crab whose save
+      holds no animation event, as saves taken with timed animation do not.
+   */
+   public synchronized void resumeAnimation(Entity entity)
+   {
+      switch (entity.getKind())
+      {
+         case OCTO_FULL:
+         case OCTO_NOT_FULL:
+         case CRAB:
+            break;
+         default:
+            return;
+      }
+
+      List<Event> pending = this.pendingEvents.get(entity);
+      if (pending == null || entity.isTimedAnimation())
+      {
+         return;
+      }
+      for (Event event : pending)
+      {
+         if (event.getAction().getKind() == ActionKind.ANIMATION)
+         {
+            return;
+         }
+      }
+      this.startAnimation(entity, 0);
+   }
+
+   public synchronized void unscheduleAllEvents(
                                           Entity entity)
    {
       List<Event> pending = this.pendingEvents.remove(entity);
@@ -67,7 +245,19 @@ final class EventScheduler
       {
          for (Event event : pending)
          {
-            this.eventQueue.remove(event);
+            if (event.isDispatched())
+            {
+               event.cancel();
+            }
+            else
+            {
+               this.eventQueue.cancel(event);
+            }
+
+            for (SchedulerListener listener : this.listeners)
+            {
+               listener.eventRemoved(event, false);
+            }
          }
       }
    }
@@ -88,16 +278,14 @@ final class EventScheduler
             this.scheduleEvent(entity,
                     entity.createActivityAction(world, imageStore),
                     entity.getActionPeriod());
-            this.scheduleEvent(entity, entity.createAnimationAction(0),
-                    entity.getAnimationPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case OCTO_NOT_FULL:
             this.scheduleEvent(entity,
                     entity.createActivityAction(world, imageStore),
                     entity.getActionPeriod());
-            this.scheduleEvent(entity,
-                    entity.createAnimationAction(0), entity.getAnimationPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case FISH:
@@ -110,17 +298,14 @@ final class EventScheduler
             this.scheduleEvent(entity,
                     entity.createActivityAction(world, imageStore),
                     entity.getActionPeriod());
-            this.scheduleEvent(entity,
-                    entity.createAnimationAction(0), entity.getAnimationPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case QUAKE:
             this.scheduleEvent(entity,
                     entity.createActivityAction(world, imageStore),
                     entity.getActionPeriod());
-            this.scheduleEvent(entity,
-                    entity.createAnimationAction(Functions.QUAKE_ANIMATION_REPEAT_COUNT),
-                    entity.getAnimationPeriod());
+            this.startAnimation(entity, Functions.QUAKE_ANIMATION_REPEAT_COUNT);
             break;
 
          case SGRASS:
@@ -129,9 +314,7 @@ final class EventScheduler
                     entity.getActionPeriod());
             break;
          case ATLANTIS:
-            this.scheduleEvent(entity,
-                    entity.createAnimationAction(Functions.ATLANTIS_ANIMATION_REPEAT_COUNT),
-                    entity.getAnimationPeriod());
+            this.startAnimation(entity, Functions.ATLANTIS_ANIMATION_REPEAT_COUNT);
             break;
 
          default:
@@ -141,13 +324,13 @@ final class EventScheduler
    private void executeSgrassActivity(Entity entity, WorldModel world,
                                             ImageStore imageStore)
    {
-      Optional<Point> openPt = world.findOpenAround(entity.position);
+      Optional<Point> openPt = world.findOpenAround(entity.getPackedPosition());
 
       if (openPt.isPresent())
       {
          Entity fish = world.createFish(Functions.FISH_ID_PREFIX + entity.getId(),
                  openPt.get(), Functions.FISH_CORRUPT_MIN +
-                         Functions.rand.nextInt(Functions.FISH_CORRUPT_MAX - Functions.FISH_CORRUPT_MIN),
+                         RegionTickExecutor.random().nextInt(Functions.FISH_CORRUPT_MAX - Functions.FISH_CORRUPT_MIN),
                  imageStore.getImageList(Functions.FISH_KEY));
          world.addEntity(fish);
          this.scheduleActions(fish, world, imageStore);
@@ -169,16 +352,16 @@ final class EventScheduler
                                           ImageStore imageStore)
    {
       Optional<Entity> crabTarget = world.findNearest(
-              entity.position, EntityKind.SGRASS);
+              entity.getPackedPosition(), EntityKind.SGRASS);
       long nextPeriod = entity.getActionPeriod();
 
       if (crabTarget.isPresent())
       {
-         Point tgtPos = crabTarget.get().position;
+         long tgtPos = crabTarget.get().getPackedPosition();
 
          if (Action.moveToCrab(entity, world, crabTarget.get(), this))
          {
-            Entity quake = world.createQuake(tgtPos,
+            Entity quake = world.createQuake(Point.unpack(tgtPos),
                     imageStore.getImageList(Functions.QUAKE_KEY));
 
             world.addEntity(quake);
@@ -195,7 +378,7 @@ final class EventScheduler
    private void executeFishActivity(Entity entity, WorldModel world,
                                           ImageStore imageStore)
    {
-      Point pos = entity.position;  // store current position before removing
+      Point pos = entity.getPosition();  // store current position before removing
 
       world.removeEntity(entity);
       this.unscheduleAllEvents(entity);
@@ -203,7 +386,7 @@ final class EventScheduler
       Entity crab = world.createCrab(entity.getId() + Functions.CRAB_ID_SUFFIX,
               pos, entity.getActionPeriod() / Functions.CRAB_PERIOD_SCALE,
               Functions.CRAB_ANIMATION_MIN +
-                      Functions.rand.nextInt(Functions.CRAB_ANIMATION_MAX - Functions.CRAB_ANIMATION_MIN),
+                      RegionTickExecutor.random().nextInt(Functions.CRAB_ANIMATION_MAX - Functions.CRAB_ANIMATION_MIN),
               imageStore.getImageList(Functions.CRAB_KEY));
 
       world.addEntity(crab);
@@ -214,7 +397,7 @@ final class EventScheduler
    private void executeOctoNotFullActivity(Entity entity,
                                                  WorldModel world, ImageStore imageStore)
    {
-      Optional<Entity> notFullTarget = world.findNearest(entity.position,
+      Optional<Entity> notFullTarget = world.findNearest(entity.getPackedPosition(),
               EntityKind.FISH);
 
       if (!notFullTarget.isPresent() ||
@@ -230,11 +413,31 @@ final class EventScheduler
    private void executeOctoFullActivity(Entity entity, WorldModel world,
                                               ImageStore imageStore)
    {
-      Optional<Entity> fullTarget = world.findNearest(entity.position,
-              EntityKind.ATLANTIS);
+      Optional<FlowField> field = world.getFlowField(EntityKind.ATLANTIS);
+      Optional<Entity> fullTarget;
+      boolean arrived;
 
-      if (fullTarget.isPresent() &&
-              Action.moveToFull(entity, world, fullTarget.get(), this))
+      if (field.isPresent() && field.get().reaches(entity.getPackedPosition()))
+      {
+         // follow the precomputed field rather than searching and stepping greedily
+         fullTarget = world.findAdjacent(entity.getPackedPosition(),
+                 EntityKind.ATLANTIS);
+         arrived = fullTarget.isPresent();
+
+         if (!arrived)
+         {
+            Action.moveAlongField(entity, world, field.get(), this);
+         }
+      }
+      else
+      {
+         fullTarget = world.findNearest(entity.getPackedPosition(),
+                 EntityKind.ATLANTIS);
+         arrived = fullTarget.isPresent() &&
+                 Action.moveToFull(entity, world, fullTarget.get(), this);
+      }
+
+      if (arrived)
       {
          //at atlantis trigger animation
          this.scheduleActions(fullTarget.get(), world, imageStore);
@@ -309,18 +512,106 @@ final class EventScheduler
 
    public  void updateOnTime(long time)
    {
-      while (!this.eventQueue.isEmpty() &&
-              this.eventQueue.peek().getTime() < time)
+      this.executeBefore(time);
+   }
+
+   /*
+      Runs the simulation for the given span of virtual time, jumping the
+      clock straight to each event instead of waiting for it. Returns the
+      number of events executed.
+   */
+   public long fastForward(long duration)
+   {
+      if (!(this.clock instanceof VirtualClock))
       {
-         Event next = this.eventQueue.poll();
+         throw new IllegalStateException(
+                 "fastForward requires a VirtualClock");
+      }
 
-         this.removePendingEvent(next);
+      VirtualClock virtualClock = (VirtualClock)this.clock;
+      long end = virtualClock.currentTimeMillis() + duration;
+      long executed = 0;
+      long nextTime;
 
-         this.executeAction(next.getAction());
+      while ((nextTime = this.eventQueue.nextTime()) < end)
+      {
+         virtualClock.advanceTo(
+                 Math.max(nextTime, virtualClock.currentTimeMillis()));
+         executed += this.executeBefore(nextTime + 1);
       }
+
+      virtualClock.advanceTo(end);
+      return executed;
    }
 
+   private long executeBefore(long time)
+   {
+      long executed = 0;
 
+      if (this.tickExecutor != null && this.tickExecutor.getRegionCount() > 1)
+      {
+         executed = this.executeInRegions(time);
+      }
+      else
+      {
+         Event next;
+         while ((next = this.eventQueue.pollBefore(time)) != null)
+         {
+            this.removePendingEvent(next);
 
+            this.executeAction(next.getAction());
+            executed++;
+         }
+      }
+
+      synchronized (this)
+      {
+         for (SchedulerListener listener : this.listeners)
+         {
+            listener.ticked(this.clock.currentTimeMillis(), time);
+         }
+      }
+      return executed;
+   }
 
+   /*
+      Drains everything due in one batch and hands it to the region executor.
+      Batched events stay pending until they actually run, so an earlier
+      event in the batch can still cancel them.
+   */
+   private long executeInRegions(long time)
+   {
+      AtomicLong executed = new AtomicLong();
+      List<Event> due = new ArrayList<>();
+
+      do
+      {
+         due.clear();
+         synchronized (this)
+         {
+            Event next;
+            while ((next = this.eventQueue.pollBefore(time)) != null)
+            {
+               next.dispatch();
+               due.add(next);
+            }
+         }
+
+         this.tickExecutor.execute(due, event -> {
+            synchronized (this)
+            {
+               if (event.isCancelled())
+               {
+                  return;
+               }
+               this.removePendingEvent(event);
+            }
+
+            this.executeAction(event.getAction());
+            executed.incrementAndGet();
+         });
+      } while (!due.isEmpty());
+
+      return executed.get();
+   }
 }
@@ -0,0 +1,208 @@
+import java.util.Arrays;
+
+/*
+FlowField: breadth-first distances from every cell of the world to the nearest
+cell next to an entity of one static target kind (e.g. ATLANTIS), routing
+around obstacles
+An entity heading for the target just steps to a neighbour one closer than
+where it stands, so it never gets stuck behind rocks the way the greedy
+nextPositionCrab step does. Only static entities (obstacles and the targets
+themselves) shape the field; moving entities are dealt with when a step is
+taken.
+A field never changes once built, so region threads can read it without a
+lock: an opened cell gives a patched copy that replaces it.
+ */
+
+final class FlowField
+{
+   private static final int UNREACHABLE = -1;
+   private static final int[] STEP_X = {-1, 1, 0, 0};
+   private static final int[] STEP_Y = {0, 0, -1, 1};
+
+   private final EntityKind targetKind;
+   private final int numRows;
+   private final int numCols;
+   private final int[] distances;
+
+   public FlowField(WorldModel world, EntityKind targetKind,
+      Iterable<Entity> targets)
+   {
+      this.targetKind = targetKind;
+      this.numRows = world.getNumRows();
+      this.numCols = world.getNumCols();
+      this.distances = new int[this.numRows * this.numCols];
+      int[] frontier = new int[this.distances.length];
+
+      Arrays.fill(this.distances, UNREACHABLE);
+
+      int tail = 0;
+      for (Entity target : targets)
+      {
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int x = target.getX() + STEP_X[dir];
+            int y = target.getY() + STEP_Y[dir];
+
+            if (this.isOpen(world, x, y) && this.distances[this.cell(x, y)] != 0)
+            {
+               this.distances[this.cell(x, y)] = 0;
+               frontier[tail++] = this.cell(x, y);
+            }
+         }
+      }
+
+      this.spread(world, frontier, tail);
+   }
+
+   private FlowField(FlowField field)
+   {
+      this.targetKind = field.targetKind;
+      this.numRows = field.numRows;
+      this.numCols = field.numCols;
+      this.distances = field.distances.clone();
+   }
+
+   public EntityKind getTargetKind() {
+      return targetKind;
+   }
+
+   /*
+      Whether some target can be reached at all from pos.
+   */
+   public boolean reaches(long pos)
+   {
+      return this.distance(Point.x(pos), Point.y(pos)) != UNREACHABLE;
+   }
+
+   /*
+      The neighbour of pos one step closer to a target, or pos itself if
+      every such neighbour is currently taken by something other than a fish.
+   */
+   public long nextStep(long pos, WorldModel world)
+   {
+      int x = Point.x(pos);
+      int y = Point.y(pos);
+      int distance = this.distance(x, y);
+
+      if (distance > 0)
+      {
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int newX = x + STEP_X[dir];
+            int newY = y + STEP_Y[dir];
+
+            if (this.distance(newX, newY) == distance - 1)
+            {
+               Entity occupant = world.occupantAt(Point.pack(newX, newY));
+
+               if (occupant == null || occupant.getKind() == EntityKind.FISH)
+               {
+                  return Point.pack(newX, newY);
+               }
+            }
+         }
+      }
+
+      return pos;
+   }
+
+   /*
+      The field after a blocking cell has opened up: this one if nothing
+      changes, or else a patched copy. Distances can only shrink when that
+      happens, so relaxing outwards from the opened cell is enough.
+   */
+   public FlowField withCellOpened(long pos, WorldModel world)
+   {
+      int posX = Point.x(pos);
+      int posY = Point.y(pos);
+
+      if (!this.isOpen(world, posX, posY))
+      {
+         return this;
+      }
+
+      int best = UNREACHABLE;
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int x = posX + STEP_X[dir];
+         int y = posY + STEP_Y[dir];
+         Entity occupant = world.occupantAt(Point.pack(x, y));
+
+         if (occupant != null && occupant.getKind() == this.targetKind)
+         {
+            best = 0;
+         }
+         else if (this.distance(x, y) != UNREACHABLE &&
+                 (best == UNREACHABLE || this.distance(x, y) + 1 < best))
+         {
+            best = this.distance(x, y) + 1;
+         }
+      }
+
+      int current = this.distances[this.cell(posX, posY)];
+      if (best == UNREACHABLE || (current != UNREACHABLE && best >= current))
+      {
+         return this;
+      }
+
+      FlowField patched = new FlowField(this);
+      int[] frontier = new int[patched.distances.length];
+      patched.distances[patched.cell(posX, posY)] = best;
+      frontier[0] = patched.cell(posX, posY);
+      patched.spread(world, frontier, 1);
+      return patched;
+   }
+
+   private void spread(WorldModel world, int[] frontier, int tail)
+   {
+      int head = 0;
+      while (head < tail)
+      {
+         int from = frontier[head++];
+         int fromX = from % this.numCols;
+         int fromY = from / this.numCols;
+
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int x = fromX + STEP_X[dir];
+            int y = fromY + STEP_Y[dir];
+
+            if (this.isOpen(world, x, y))
+            {
+               int to = this.cell(x, y);
+               if (this.distances[to] == UNREACHABLE ||
+                       this.distances[to] > this.distances[from] + 1)
+               {
+                  this.distances[to] = this.distances[from] + 1;
+                  frontier[tail++] = to;
+               }
+            }
+         }
+      }
+   }
+
+   private int distance(int x, int y)
+   {
+      if (y < 0 || y >= this.numRows || x < 0 || x >= this.numCols)
+      {
+         return UNREACHABLE;
+      }
+      return this.distances[this.cell(x, y)];
+   }
+
+   private boolean isOpen(WorldModel world, int x, int y)
+   {
+      if (y < 0 || y >= this.numRows || x < 0 || x >= this.numCols)
+      {
+         return false;
+      }
+
+      Entity occupant = world.occupantAt(Point.pack(x, y));
+      return occupant == null || !WorldModel.isStatic(occupant);
+   }
+
+   private int cell(int x, int y)
+   {
+      return y * this.numCols + x;
+   }
+}
@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +16,7 @@ Functions - everything our virtual world is doing right now - is this a good des
 
 final class Functions {
    public static final Random rand = new Random();
+   private static final PixelKeyer PIXEL_KEYER = loadPixelKeyer();
 
    public static final String OCTO_KEY = "octo";
    public static final int OCTO_NUM_PROPERTIES = 7;
@@ -83,6 +87,13 @@ final class Functions {
 
    public static final int PROPERTY_KEY = 0;
 
+   private static final byte[] BGND_KEY_BYTES = keyBytes(BGND_KEY);
+   private static final byte[] OCTO_KEY_BYTES = keyBytes(OCTO_KEY);
+   private static final byte[] OBSTACLE_KEY_BYTES = keyBytes(OBSTACLE_KEY);
+   private static final byte[] FISH_KEY_BYTES = keyBytes(FISH_KEY);
+   private static final byte[] ATLANTIS_KEY_BYTES = keyBytes(ATLANTIS_KEY);
+   private static final byte[] SGRASS_KEY_BYTES = keyBytes(SGRASS_KEY);
+
    public static int getKeyedRedIdx() {
       return KEYED_RED_IDX;
    }
@@ -100,12 +111,32 @@ final class Functions {
       int nonAlpha = maskColor & COLOR_MASK;
       img.format = PApplet.ARGB;
       img.loadPixels();
-      for (int i = 0; i < img.pixels.length; i++) {
-         if ((img.pixels[i] & COLOR_MASK) == nonAlpha) {
-            img.pixels[i] = alphaValue | nonAlpha;
+      PIXEL_KEYER.key(img.pixels, nonAlpha, alphaValue | nonAlpha);
+      img.updatePixels();
+   }
+
+   /* the scalar keying loop, from the given pixel to the end */
+   static void keyPixels(int[] pixels, int from, int keyColor,
+                         int replacement) {
+      for (int i = from; i < pixels.length; i++) {
+         if ((pixels[i] & COLOR_MASK) == keyColor) {
+            pixels[i] = replacement;
          }
       }
-      img.updatePixels();
+   }
+
+   /*
+      The vectorized VectorAlpha when it was built and the Vector API module
+      is available, and the scalar loop otherwise.
+   */
+   private static PixelKeyer loadPixelKeyer() {
+      try {
+         return (PixelKeyer)Class.forName("VectorAlpha")
+                 .getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+         return (pixels, keyColor, replacement) ->
+                 keyPixels(pixels, 0, keyColor, replacement);
+      }
    }
 
    public static void load(Scanner in, WorldModel world, ImageStore imageStore) {
@@ -127,6 +158,140 @@ final class Functions {
       }
    }
 
+   /*
+      Same as load(Scanner, ...) but tokenizes the raw bytes instead of
+      splitting a String per line; background cells with the same id share
+      one Background.
+   */
+   public static void load(InputStream in, WorldModel world,
+                           ImageStore imageStore) throws IOException {
+      load(in, worldTarget(world, imageStore));
+   }
+
+   /*
+      Decodes every line of a world.sav stream into the target, reporting
+      the lines it rejects; the one place the text format is read.
+   */
+   static void load(InputStream in, LoadTarget target) throws IOException {
+      LineTokenizer tokens = new LineTokenizer(in);
+      int lineNumber = 0;
+      while (tokens.nextLine()) {
+         try {
+            if (!processTokens(tokens, target)) {
+               System.err.println(String.format("invalid entry on line %d",
+                       lineNumber));
+            }
+         } catch (NumberFormatException e) {
+            System.err.println(String.format("invalid entry on line %d",
+                    lineNumber));
+         } catch (IllegalArgumentException e) {
+            System.err.println(String.format("issue on line %d: %s",
+                    lineNumber, e.getMessage()));
+         }
+         lineNumber++;
+      }
+   }
+
+   /*
+      Receives the decoded fields of each valid world.sav line; loading
+      straight into a WorldModel and batching lines for a parallel load
+      share the same tokenizing code this way.
+   */
+   interface LoadTarget {
+      void addBackground(int x, int y, String id);
+
+      boolean addEntity(EntityKind kind, String id, int x, int y,
+                        int resourceLimit, int actionPeriod,
+                        int animationPeriod);
+   }
+
+   /*
+      A LoadTarget that applies lines to the world as they arrive;
+      background cells with the same id share one Background.
+   */
+   static LoadTarget worldTarget(WorldModel world, ImageStore imageStore) {
+      return new LoadTarget() {
+         public void addBackground(int x, int y, String id) {
+            world.setBackground(x, y, world.backgroundFor(id, imageStore));
+         }
+
+         public boolean addEntity(EntityKind kind, String id, int x, int y,
+                                  int resourceLimit, int actionPeriod,
+                                  int animationPeriod) {
+            return world.loadEntity(kind, id, new Point(x, y), resourceLimit,
+                    actionPeriod, animationPeriod, imageStore) != null;
+         }
+      };
+   }
+
+   /*
+      Decodes the tokenizer's current line into the target. Returns false
+      for a malformed line; bad numbers throw NumberFormatException.
+   */
+   static boolean processTokens(LineTokenizer tokens, LoadTarget target) {
+      int count = tokens.getTokenCount();
+      if (count == 0) {
+         return false;
+      }
+
+      if (tokens.tokenEquals(PROPERTY_KEY, BGND_KEY_BYTES)) {
+         if (count == BGND_NUM_PROPERTIES) {
+            int x = tokens.intToken(BGND_COL);
+            int y = tokens.intToken(BGND_ROW);
+            target.addBackground(x, y, tokens.internedToken(BGND_ID));
+         }
+         return count == BGND_NUM_PROPERTIES;
+      } else if (tokens.tokenEquals(PROPERTY_KEY, OCTO_KEY_BYTES)) {
+         return processEntity(tokens, target, EntityKind.OCTO_NOT_FULL,
+                 OCTO_NUM_PROPERTIES, OCTO_ID, OCTO_COL, OCTO_ROW, OCTO_LIMIT,
+                 OCTO_ACTION_PERIOD, OCTO_ANIMATION_PERIOD);
+      } else if (tokens.tokenEquals(PROPERTY_KEY, OBSTACLE_KEY_BYTES)) {
+         return processEntity(tokens, target, EntityKind.OBSTACLE,
+                 OBSTACLE_NUM_PROPERTIES, OBSTACLE_ID, OBSTACLE_COL,
+                 OBSTACLE_ROW, -1, -1, -1);
+      } else if (tokens.tokenEquals(PROPERTY_KEY, FISH_KEY_BYTES)) {
+         return processEntity(tokens, target, EntityKind.FISH,
+                 FISH_NUM_PROPERTIES, FISH_ID, FISH_COL, FISH_ROW, -1,
+                 FISH_ACTION_PERIOD, -1);
+      } else if (tokens.tokenEquals(PROPERTY_KEY, ATLANTIS_KEY_BYTES)) {
+         return processEntity(tokens, target, EntityKind.ATLANTIS,
+                 ATLANTIS_NUM_PROPERTIES, ATLANTIS_ID, ATLANTIS_COL,
+                 ATLANTIS_ROW, -1, -1, -1);
+      } else if (tokens.tokenEquals(PROPERTY_KEY, SGRASS_KEY_BYTES)) {
+         return processEntity(tokens, target, EntityKind.SGRASS,
+                 SGRASS_NUM_PROPERTIES, SGRASS_ID, SGRASS_COL, SGRASS_ROW, -1,
+                 SGRASS_ACTION_PERIOD, -1);
+      }
+
+      return false;
+   }
+
+   /*
+      A negative property index means that kind has no such property in the
+      text format and 0 is passed instead.
+   */
+   private static boolean processEntity(LineTokenizer tokens,
+                                        LoadTarget target, EntityKind kind,
+                                        int numProperties, int idIdx,
+                                        int colIdx, int rowIdx, int limitIdx,
+                                        int actionIdx, int animationIdx) {
+      if (tokens.getTokenCount() != numProperties) {
+         return false;
+      }
+
+      int x = tokens.intToken(colIdx);
+      int y = tokens.intToken(rowIdx);
+      int resourceLimit = limitIdx < 0 ? 0 : tokens.intToken(limitIdx);
+      int actionPeriod = actionIdx < 0 ? 0 : tokens.intToken(actionIdx);
+      int animationPeriod = animationIdx < 0 ? 0 : tokens.intToken(animationIdx);
+      return target.addEntity(kind, tokens.stringToken(idIdx), x, y,
+              resourceLimit, actionPeriod, animationPeriod);
+   }
+
+   private static byte[] keyBytes(String key) {
+      return key.getBytes(StandardCharsets.UTF_8);
+   }
+
    private static boolean processLine(String line, WorldModel world,
                                      ImageStore imageStore) {
       String[] properties = line.split("\\s");
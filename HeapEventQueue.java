@@ -0,0 +1,81 @@
+import java.util.PriorityQueue;
+
+/*
+HeapEventQueue: the original binary heap engine, O(log n) per add and poll
+Cancelled events stay in the heap as tombstones and are skipped when they
+surface; once they outnumber the live events the heap is rebuilt without them.
+ */
+
+final class HeapEventQueue
+   implements EventQueue
+{
+   private static final int COMPACT_MIN_CANCELLED = 64;
+
+   private final PriorityQueue<Event> eventQueue;
+   private int cancelledCount;
+
+   public HeapEventQueue()
+   {
+      this.eventQueue = new PriorityQueue<>(new EventComparator());
+   }
+
+   public void add(Event event)
+   {
+      this.eventQueue.add(event);
+   }
+
+   public void cancel(Event event)
+   {
+      if (!event.isCancelled())
+      {
+         event.cancel();
+         this.cancelledCount++;
+
+         if (this.cancelledCount > COMPACT_MIN_CANCELLED &&
+                 this.cancelledCount > this.size())
+         {
+            this.eventQueue.removeIf(Event::isCancelled);
+            this.cancelledCount = 0;
+         }
+      }
+   }
+
+   public Event pollBefore(long time)
+   {
+      while (!this.eventQueue.isEmpty() &&
+              this.eventQueue.peek().getTime() < time)
+      {
+         Event next = this.eventQueue.poll();
+
+         if (!next.isCancelled())
+         {
+            return next;
+         }
+         this.cancelledCount--;
+      }
+
+      return null;
+   }
+
+   public long nextTime()
+   {
+      while (!this.eventQueue.isEmpty() && this.eventQueue.peek().isCancelled())
+      {
+         this.eventQueue.poll();
+         this.cancelledCount--;
+      }
+
+      return this.eventQueue.isEmpty()
+         ? Long.MAX_VALUE : this.eventQueue.peek().getTime();
+   }
+
+   public int size()
+   {
+      return this.eventQueue.size() - this.cancelledCount;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size() == 0;
+   }
+}
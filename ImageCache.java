@@ -0,0 +1,403 @@
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/*
+ImageCache: decoded images shared by file and key colour, within a budget
+Every imagelist line names an image file and maybe a colour to key out; all
+lines with the same file and colour share one entry and so one decoded
+image, whichever keys and frames they belong to. The lists handed out for
+each key (FrameList) hold entries rather than images and fetch the pixels
+from the cache on every get, decoding them again if they were evicted.
+Entries that a retained FrameList refers to (frames of live entities and of
+background tiles) are pinned, as are frames packed into a TextureAtlas.
+When the decoded images outgrow the byte budget, unpinned entries are
+dropped least recently used first.
+Every drawn frame goes through get, so a hit takes no lock: it reads the
+entry's image and stamps it with the current use epoch, which only moves on
+a miss, making the LRU order approximate between misses. A miss decodes
+under the entry's own lock, so other frames keep drawing meanwhile, and only
+takes the cache's lock to account for the new image.
+ */
+
+final class ImageCache
+{
+   private final PApplet screen;
+   /* stands in for a frame whose file has gone missing since it loaded */
+   private final PImage missing;
+   private final Map<String, Entry> entries;
+   /* null unless decoded images are also kept on disk between runs */
+   private volatile ImageFileCache files;
+   private long budget;
+   private long bytes;
+   /* written under the cache's lock, read by hits without it */
+   private volatile long useClock;
+   private final LongAdder hits;
+   private long misses;
+   private long evictions;
+
+   public ImageCache(PApplet screen, PImage missing)
+   {
+      this.screen = screen;
+      this.missing = missing;
+      this.entries = new HashMap<>();
+      this.budget = Long.MAX_VALUE;
+      this.hits = new LongAdder();
+   }
+
+   public long getHits() {
+      return hits.sum();
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   public synchronized long getEvictions() {
+      return evictions;
+   }
+
+   public synchronized long getBytes() {
+      return bytes;
+   }
+
+   public synchronized int getEntryCount() {
+      return entries.size();
+   }
+
+   public void setFileCache(ImageFileCache files)
+   {
+      this.files = files;
+   }
+
+   /* decoded pixel memory to stay within, as far as unpinned entries allow */
+   public synchronized void setBudget(long budget)
+   {
+      this.budget = budget;
+      this.evict();
+   }
+
+   /* the shared entry for a file keyed by colour, or not keyed */
+   public synchronized Entry entryFor(String file, boolean keyed, int keyColor)
+   {
+      String name = keyed ? file + '\0' + keyColor : file;
+      Entry entry = this.entries.get(name);
+      if (entry == null)
+      {
+         entry = new Entry(file, keyed, keyColor);
+         this.entries.put(name, entry);
+      }
+      return entry;
+   }
+
+   /*
+      The decoded image for an entry, decoding it on a miss; null if the
+      file cannot be loaded. A file that failed once is not tried again.
+   */
+   public PImage get(Entry entry)
+   {
+      PImage image = entry.image;
+      if (image != null)
+      {
+         entry.touch(this.useClock);
+         this.hits.increment();
+         return image;
+      }
+      if (entry.failed)
+      {
+         return null;
+      }
+      return this.load(entry);
+   }
+
+   /* decodes one entry at a time, without holding up hits on others */
+   private PImage load(Entry entry)
+   {
+      synchronized (entry)
+      {
+         PImage image = entry.image;
+         if (image != null)
+         {
+            this.hits.increment();
+            return image;
+         }
+         if (entry.failed)
+         {
+            return null;
+         }
+         image = entry.decode(this.screen, this.files);
+         synchronized (this)
+         {
+            this.misses++;
+            entry.lastUse = ++this.useClock;
+            this.store(entry, image);
+         }
+         return image;
+      }
+   }
+
+   /*
+      Decodes every entry not already in the cache on the given number of
+      threads and waits for them all; the budget still applies.
+   */
+   public void preload(List<Entry> wanted, int threads)
+   {
+      Set<Entry> toLoad = new LinkedHashSet<>();
+      synchronized (this)
+      {
+         for (Entry entry : wanted)
+         {
+            if (entry.image == null && !entry.failed)
+            {
+               toLoad.add(entry);
+            }
+         }
+      }
+
+      List<FutureTask<PImage>> decoded = new ArrayList<>();
+      ExecutorService pool = threads > 1
+              ? Executors.newFixedThreadPool(threads) : null;
+      for (Entry entry : toLoad)
+      {
+         FutureTask<PImage> task =
+                 new FutureTask<>(() -> entry.decode(this.screen, this.files));
+         decoded.add(task);
+         if (pool == null)
+         {
+            task.run();
+         }
+         else
+         {
+            pool.execute(task);
+         }
+      }
+      if (pool != null)
+      {
+         pool.shutdown();
+      }
+
+      int i = 0;
+      for (Entry entry : toLoad)
+      {
+         PImage image = null;
+         try
+         {
+            image = decoded.get(i++).get();
+         }
+         catch (ExecutionException e)
+         {
+            System.err.println(String.format("could not load %s: %s",
+                    entry.file, e.getCause()));
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         synchronized (this)
+         {
+            this.misses++;
+            entry.lastUse = ++this.useClock;
+            this.store(entry, image);
+         }
+      }
+   }
+
+   /* a list of frames that reads through this cache */
+   public FrameList frames(List<Entry> frames)
+   {
+      return new FrameList(this, frames.toArray(new Entry[0]));
+   }
+
+   /*
+      Pins a list's entries while at least one holder has retained it, so
+      live entities never have their frames evicted.
+   */
+   public synchronized void retain(FrameList list)
+   {
+      if (list.refs++ == 0)
+      {
+         for (Entry entry : list.frames)
+         {
+            entry.pins++;
+         }
+      }
+   }
+
+   /*
+      Pins entries for as long as the cache lives, for holders that keep
+      their images by identity, such as a TextureAtlas.
+   */
+   public synchronized void pin(Collection<Entry> pinned)
+   {
+      for (Entry entry : pinned)
+      {
+         entry.pins++;
+      }
+   }
+
+   public synchronized void release(FrameList list)
+   {
+      if (list.refs > 0 && --list.refs == 0)
+      {
+         for (Entry entry : list.frames)
+         {
+            entry.pins--;
+         }
+         this.evict();
+      }
+   }
+
+   private void store(Entry entry, PImage image)
+   {
+      if (image == null)
+      {
+         entry.failed = true;
+         return;
+      }
+      if (entry.image != null)
+      {
+         return;
+      }
+      entry.image = image;
+      entry.bytes = (long)image.width * image.height * Integer.BYTES;
+      this.bytes += entry.bytes;
+      this.evict();
+   }
+
+   /* drops unpinned images, least recently used first, until within budget */
+   private void evict()
+   {
+      while (this.bytes > this.budget)
+      {
+         Entry oldest = null;
+         for (Entry entry : this.entries.values())
+         {
+            if (entry.image != null && entry.pins == 0
+                    && (oldest == null || entry.lastUse < oldest.lastUse))
+            {
+               oldest = entry;
+            }
+         }
+         if (oldest == null)
+         {
+            return;
+         }
+         oldest.image = null;
+         this.bytes -= oldest.bytes;
+         this.evictions++;
+      }
+   }
+
+   /*
+      One image file with its key colour; image and lastUse are read
+      without locking, the rest is guarded by the cache.
+   */
+   static final class Entry
+   {
+      private final String file;
+      private final boolean keyed;
+      private final int keyColor;
+      private volatile PImage image;
+      /* set once decoding has failed, so misses stop retrying it */
+      private volatile boolean failed;
+      private long bytes;
+      private volatile long lastUse;
+      private int pins;
+
+      Entry(String file, boolean keyed, int keyColor)
+      {
+         this.file = file;
+         this.keyed = keyed;
+         this.keyColor = keyColor;
+      }
+
+      /* only writes when the epoch moved, so hits stay read-only */
+      private void touch(long useClock)
+      {
+         if (this.lastUse != useClock)
+         {
+            this.lastUse = useClock;
+         }
+      }
+
+      /*
+         Reads the keyed image from the file cache if it has a current
+         copy, and otherwise decodes and keys it and saves it there.
+         PApplet.loadImage is what requestImage runs on its own threads.
+      */
+      private PImage decode(PApplet screen, ImageFileCache files)
+      {
+         File source = files == null ? null : new File(screen.sketchPath(this.file));
+         if (source != null && source.isFile())
+         {
+            PImage cached = files.read(this.file, source, this.keyed, this.keyColor);
+            if (cached != null)
+            {
+               return cached;
+            }
+         }
+
+         PImage img = screen.loadImage(this.file);
+         if (img == null || img.width == -1)
+         {
+            return null;
+         }
+         if (this.keyed)
+         {
+            Functions.setAlpha(img, this.keyColor, 0);
+         }
+         if (source != null && source.isFile())
+         {
+            files.write(this.file, source, this.keyed, this.keyColor, img);
+         }
+         return img;
+      }
+   }
+
+   /*
+      The frames of one imagelist key. Entities keep this list and index
+      into it, so it fetches each frame from the cache as it is drawn.
+   */
+   static final class FrameList
+      extends AbstractList<PImage>
+      implements RandomAccess
+   {
+      private final ImageCache cache;
+      private final Entry[] frames;
+      /* guarded by the cache */
+      private int refs;
+
+      FrameList(ImageCache cache, Entry[] frames)
+      {
+         this.cache = cache;
+         this.frames = frames;
+      }
+
+      public PImage get(int index)
+      {
+         PImage image = this.cache.get(this.frames[index]);
+         return image == null ? this.cache.missing : image;
+      }
+
+      public int size()
+      {
+         return this.frames.length;
+      }
+   }
+}
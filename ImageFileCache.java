@@ -0,0 +1,187 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import processing.core.PImage;
+
+/*
+ImageFileCache: decoded, already keyed images kept on disk between runs
+Each image file and key colour gets one cache file holding a header (the
+source path, its size and modification time, the key colour, the image
+format and size) followed by the final pixels. Reading maps the file and
+copies the pixels straight into a new PImage, skipping both the decode and
+setAlpha; a cache file whose header no longer matches its source is stale
+and is rewritten after the next decode. Files are written to a temporary
+name and moved into place, so a crash never leaves a torn cache file; a
+write that fails deletes its temporary file.
+ */
+
+final class ImageFileCache
+{
+   public static final int MAGIC = 0x56574943; /* "VWIC" */
+   public static final short VERSION = 1;
+
+   private final Path dir;
+   private final AtomicInteger reads;
+   private final AtomicInteger writes;
+   private final AtomicInteger stale;
+
+   public ImageFileCache(Path dir) throws IOException
+   {
+      this.dir = Files.createDirectories(dir);
+      this.reads = new AtomicInteger();
+      this.writes = new AtomicInteger();
+      this.stale = new AtomicInteger();
+   }
+
+   public int getReads() {
+      return reads.get();
+   }
+
+   public int getWrites() {
+      return writes.get();
+   }
+
+   public int getStale() {
+      return stale.get();
+   }
+
+   /*
+      The cached image for a source file and key colour, or null if there
+      is none or it was made from a different version of the source.
+   */
+   public PImage read(String file, File source, boolean keyed, int keyColor)
+   {
+      Path path = this.pathFor(file, keyed, keyColor);
+      if (!Files.isRegularFile(path))
+      {
+         return null;
+      }
+
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+      {
+         MappedByteBuffer buffer =
+                 channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION
+                 || !readString(buffer).equals(file)
+                 || buffer.getLong() != source.length()
+                 || buffer.getLong() != source.lastModified()
+                 || (buffer.get() != 0) != keyed
+                 || buffer.getInt() != keyColor)
+         {
+            this.stale.incrementAndGet();
+            return null;
+         }
+
+         int format = buffer.getInt();
+         int width = buffer.getInt();
+         int height = buffer.getInt();
+         if ((long)width * height * Integer.BYTES != buffer.remaining())
+         {
+            this.stale.incrementAndGet();
+            return null;
+         }
+
+         PImage image = new PImage(width, height, format);
+         buffer.asIntBuffer().get(image.pixels);
+         image.updatePixels();
+         this.reads.incrementAndGet();
+         return image;
+      }
+      catch (IOException | RuntimeException e)
+      {
+         this.stale.incrementAndGet();
+         return null;
+      }
+   }
+
+   /* saves a decoded and keyed image; failures only cost the next start */
+   public void write(String file, File source, boolean keyed, int keyColor,
+      PImage image)
+   {
+      image.loadPixels();
+      byte[] name = file.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Short.BYTES
+              + Short.BYTES + name.length + 2 * Long.BYTES + 1
+              + 4 * Integer.BYTES + image.pixels.length * Integer.BYTES);
+      buffer.putInt(MAGIC).putShort(VERSION);
+      buffer.putShort((short)name.length).put(name);
+      buffer.putLong(source.length()).putLong(source.lastModified());
+      buffer.put((byte)(keyed ? 1 : 0)).putInt(keyColor);
+      buffer.putInt(image.format).putInt(image.width).putInt(image.height);
+      buffer.asIntBuffer().put(image.pixels);
+      buffer.position(buffer.limit());
+      buffer.flip();
+
+      Path path = this.pathFor(file, keyed, keyColor);
+      Path temp = null;
+      try
+      {
+         temp = Files.createTempFile(this.dir, "image", ".tmp");
+         try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+         {
+            while (buffer.hasRemaining())
+            {
+               channel.write(buffer);
+            }
+         }
+         Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+         temp = null;
+         this.writes.incrementAndGet();
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("could not cache %s: %s",
+                 file, e.getMessage()));
+      }
+      finally
+      {
+         deleteQuietly(temp);
+      }
+   }
+
+   /* a temporary file left by a failed write would never be cleaned up */
+   private static void deleteQuietly(Path temp)
+   {
+      if (temp != null)
+      {
+         try
+         {
+            Files.deleteIfExists(temp);
+         }
+         catch (IOException e)
+         {
+            System.err.println(String.format("could not delete %s: %s",
+                    temp, e.getMessage()));
+         }
+      }
+   }
+
+   /*
+      One readable file name per source and key colour; two sources that
+      flatten to the same name just evict each other, as the header keeps
+      the full path.
+   */
+   private Path pathFor(String file, boolean keyed, int keyColor)
+   {
+      String name = file.replaceAll("[^A-Za-z0-9._-]", "_");
+      return this.dir.resolve(keyed
+              ? String.format("%s.%08x.px", name, keyColor) : name + ".px");
+   }
+
+   private static String readString(ByteBuffer buffer)
+   {
+      byte[] bytes = new byte[buffer.getShort() & 0xffff];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -1,3 +1,5 @@
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 import processing.core.PApplet;
@@ -5,59 +7,291 @@ import processing.core.PImage;
 
 /*
 ImageStore: to ideally keep track of the images used in our virtual world
+Loading the image list only records which file (and key colour) each frame
+of each key comes from; the frames of a key are decoded the first time its
+list is asked for, or all up front on several threads. Decoded images live
+in an ImageCache shared by every key. As a WorldListener the store pins the
+frames of live entities in that cache, so only frames no entity is showing
+can be evicted.
  */
 
 final class ImageStore
+   implements WorldListener
 {
    private final Map<String, List<PImage>> images;
+   /* every key's frames as listed, decoded or not */
+   private final Map<String, List<ImageCache.Entry>> listed;
    private final List<PImage> defaultImages;
+   /* created by the first loadImages, which supplies the PApplet */
+   private ImageCache cache;
+   private long budget = Long.MAX_VALUE;
+   private ImageFileCache files;
 
    public ImageStore(PImage defaultImage)
    {
       this.images = new HashMap<>();
+      this.listed = new HashMap<>();
       defaultImages = new LinkedList<>();
       defaultImages.add(defaultImage);
    }
 
-   public List<PImage> getImageList(String key)
+   public ImageCache getCache() {
+      return cache;
+   }
+
+   public ImageFileCache getFileCache() {
+      return files;
+   }
+
+   /*
+      Decoded pixel memory, in bytes, the cache should stay within; frames
+      of live entities are kept regardless.
+   */
+   public synchronized void setBudget(long budget)
+   {
+      this.budget = budget;
+      if (this.cache != null)
+      {
+         this.cache.setBudget(budget);
+      }
+   }
+
+   /*
+      Keeps decoded, keyed images in a directory so later runs can skip
+      decoding them.
+   */
+   public synchronized void setFileCache(ImageFileCache files)
    {
-      return this.images.getOrDefault(key, this.defaultImages);
+      this.files = files;
+      if (this.cache != null)
+      {
+         this.cache.setFileCache(files);
+      }
    }
 
-   private static List<PImage> getImages(Map<String, List<PImage>> images,
-                                        String key)
+   /*
+      The frames for a key, decoded on first use; frames whose file did not
+      load are left out, and a key with none gets the default image.
+   */
+   public synchronized List<PImage> getImageList(String key)
    {
-      List<PImage> imgs = images.get(key);
+      List<PImage> imgs = this.images.get(key);
       if (imgs == null)
       {
-         imgs = new LinkedList<>();
-         images.put(key, imgs);
+         List<ImageCache.Entry> entries = this.listed.get(key);
+         if (entries == null)
+         {
+            return this.defaultImages;
+         }
+
+         List<ImageCache.Entry> loaded = new ArrayList<>();
+         for (ImageCache.Entry entry : entries)
+         {
+            if (this.cache.get(entry) != null)
+            {
+               loaded.add(entry);
+            }
+         }
+         imgs = loaded.isEmpty() ? this.defaultImages : this.cache.frames(loaded);
+         this.images.put(key, imgs);
       }
       return imgs;
    }
 
-   private void processImageLine(Map<String, List<PImage>> images,
-                                       String line, PApplet screen)
+   /*
+      Keeps a list's frames in the cache until it is released; for holders
+      other than entities, such as background tiles.
+   */
+   public void retain(List<PImage> imgs)
+   {
+      if (imgs instanceof ImageCache.FrameList)
+      {
+         this.cache.retain((ImageCache.FrameList)imgs);
+      }
+   }
+
+   public void release(List<PImage> imgs)
+   {
+      if (imgs instanceof ImageCache.FrameList)
+      {
+         this.cache.release((ImageCache.FrameList)imgs);
+      }
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      this.retain(entity.getImages());
+   }
+
+   public void entityRemoved(Entity entity, long pos)
+   {
+      this.release(entity.getImages());
+   }
+
+   public void entityMoved(Entity entity, long from, long to)
+   {
+   }
+
+   public void backgroundChanged(int x, int y)
+   {
+   }
+
+   /*
+      Packs every frame, the default image included, into a TextureAtlas;
+      this decodes any key not used yet. The atlas finds frames by identity,
+      so the packed entries are pinned in the cache for good: an evicted
+      frame would come back as a new image the atlas does not know. With
+      an atlas the budget therefore only bounds frames added after it.
+   */
+   public TextureAtlas buildAtlas(int pageSize)
+   {
+      List<PImage> frames = new ArrayList<>(this.defaultImages);
+      Set<ImageCache.Entry> entries = new LinkedHashSet<>();
+      synchronized (this)
+      {
+         for (List<ImageCache.Entry> listed : this.listed.values())
+         {
+            entries.addAll(listed);
+         }
+      }
+      if (this.cache != null)
+      {
+         this.cache.pin(entries);
+         for (ImageCache.Entry entry : entries)
+         {
+            PImage image = this.cache.get(entry);
+            if (image != null)
+            {
+               frames.add(image);
+            }
+         }
+      }
+      return TextureAtlas.build(frames, pageSize);
+   }
+
+   /* adds a frame to a key; a key already handed out is read again */
+   private synchronized void addFrame(String key, String file, boolean keyed,
+      int keyColor, PApplet screen)
+   {
+      if (this.cache == null)
+      {
+         this.cache = new ImageCache(screen, this.defaultImages.get(0));
+         this.cache.setBudget(this.budget);
+         this.cache.setFileCache(this.files);
+      }
+      this.listed.computeIfAbsent(key, k -> new ArrayList<>())
+              .add(this.cache.entryFor(file, keyed, keyColor));
+      this.images.remove(key);
+   }
+
+   private void processImageLine(String line, PApplet screen)
    {
       String[] attrs = line.split("\\s");
       if (attrs.length >= 2)
       {
-         String key = attrs[0];
-         PImage img = screen.loadImage(attrs[1]);
-         if (img != null && img.width != -1)
+         int keyColor = 0;
+         boolean keyed = attrs.length >= Functions.KEYED_IMAGE_MIN;
+         try
          {
-            List<PImage> imgs = ImageStore.getImages(images, key);
-            imgs.add(img);
-
-            if (attrs.length >= Functions.KEYED_IMAGE_MIN)
+            if (keyed)
             {
                int r = Integer.parseInt(attrs[Functions.getKeyedRedIdx()]);
                int g = Integer.parseInt(attrs[Functions.getKeyedGreenIdx()]);
                int b = Integer.parseInt(attrs[Functions.getKeyedBlueIdx()]);
-               Functions.setAlpha(img, screen.color(r, g, b), 0);
+               keyColor = screen.color(r, g, b);
+            }
+         }
+         catch (NumberFormatException e)
+         {
+            /* the image is still loaded, just not keyed */
+            this.addFrame(attrs[0], attrs[1], false, 0, screen);
+            throw e;
+         }
+         this.addFrame(attrs[0], attrs[1], keyed, keyColor, screen);
+      }
+   }
+
+   private void processImageTokens(LineTokenizer tokens, PApplet screen)
+   {
+      if (tokens.getTokenCount() >= 2)
+      {
+         String key = tokens.internedToken(0);
+         String file = tokens.stringToken(1);
+         int keyColor = 0;
+         boolean keyed = tokens.getTokenCount() >= Functions.KEYED_IMAGE_MIN;
+         try
+         {
+            if (keyed)
+            {
+               int r = tokens.intToken(Functions.getKeyedRedIdx());
+               int g = tokens.intToken(Functions.getKeyedGreenIdx());
+               int b = tokens.intToken(Functions.getKeyedBlueIdx());
+               keyColor = screen.color(r, g, b);
+            }
+         }
+         catch (NumberFormatException e)
+         {
+            this.addFrame(key, file, false, 0, screen);
+            throw e;
+         }
+         this.addFrame(key, file, keyed, keyColor, screen);
+      }
+   }
+
+   /*
+      Reads the image list. With one thread nothing is decoded until a key
+      is first asked for; with more, every image is decoded and keyed up
+      front on that many threads. Each key keeps its frames in list order.
+      Returns the number of frames listed.
+   */
+   public int loadImages(InputStream in, PApplet screen, int threads)
+      throws IOException
+   {
+      LineTokenizer tokens = new LineTokenizer(in);
+      int lineNumber = 0;
+      int frames = 0;
+      while (tokens.nextLine())
+      {
+         try
+         {
+            this.processImageTokens(tokens, screen);
+         }
+         catch (NumberFormatException e)
+         {
+            System.out.println(String.format("Image format error on line %d",
+                    lineNumber));
+         }
+         if (tokens.getTokenCount() >= 2)
+         {
+            frames++;
+         }
+         lineNumber++;
+      }
+
+      if (threads > 1 && this.cache != null)
+      {
+         List<ImageCache.Entry> all = new ArrayList<>();
+         List<String> keys;
+         synchronized (this)
+         {
+            for (List<ImageCache.Entry> entries : this.listed.values())
+            {
+               all.addAll(entries);
             }
+            keys = new ArrayList<>(this.listed.keySet());
+         }
+         this.cache.preload(all, threads);
+         for (String key : keys)
+         {
+            this.getImageList(key);
          }
       }
+      return frames;
+   }
+
+   public void loadImages(InputStream in, PApplet screen) throws IOException
+   {
+      this.loadImages(in, screen, 1);
    }
 
    public  void loadImages(Scanner in,
@@ -68,7 +302,7 @@ final class ImageStore
       {
          try
          {
-            this.processImageLine(this.images, in.nextLine(), screen);
+            this.processImageLine(in.nextLine(), screen);
          }
          catch (NumberFormatException e)
          {
@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+LineTokenizer: splits a byte stream into whitespace-separated tokens a line
+at a time without building a String or String[] per line
+Keys are compared and integers parsed directly from the line buffer; only
+tokens the caller keeps (ids, file names) become Strings, and repeated ones
+such as background ids can be interned so each distinct value is built once.
+ */
+
+final class LineTokenizer
+{
+   private static final int BUFFER_SIZE = 1 << 16;
+   private static final int MAX_TOKENS = 16;
+   private static final int INTERN_CAPACITY = 256;
+
+   private final InputStream in;
+   private final byte[] buffer;
+   private int bufferPos;
+   private int bufferLimit;
+
+   private byte[] line;
+   private int lineLength;
+   private final int[] starts;
+   private final int[] ends;
+   private int tokenCount;
+
+   /* open-addressed by the hash of a token's bytes, kept to rehash with */
+   private byte[][] internedKeys;
+   private int[] internedHashes;
+   private String[] interned;
+   private int internedCount;
+
+   public LineTokenizer(InputStream in)
+   {
+      this.in = in;
+      this.buffer = new byte[BUFFER_SIZE];
+      this.line = new byte[256];
+      this.starts = new int[MAX_TOKENS];
+      this.ends = new int[MAX_TOKENS];
+      this.internedKeys = new byte[INTERN_CAPACITY][];
+      this.internedHashes = new int[INTERN_CAPACITY];
+      this.interned = new String[INTERN_CAPACITY];
+   }
+
+   /*
+      Reads the next line and splits it into tokens; false at end of input.
+      Lines end at '\n' with an optional '\r' before it.
+   */
+   public boolean nextLine() throws IOException
+   {
+      this.lineLength = 0;
+      boolean sawInput = false;
+
+      while (true)
+      {
+         if (this.bufferPos == this.bufferLimit)
+         {
+            this.bufferLimit = this.in.read(this.buffer);
+            this.bufferPos = 0;
+            if (this.bufferLimit <= 0)
+            {
+               this.bufferLimit = 0;
+               if (!sawInput)
+               {
+                  return false;
+               }
+               break;
+            }
+         }
+         sawInput = true;
+
+         byte b = this.buffer[this.bufferPos++];
+         if (b == '\n')
+         {
+            break;
+         }
+         if (this.lineLength == this.line.length)
+         {
+            this.line = Arrays.copyOf(this.line, this.line.length * 2);
+         }
+         this.line[this.lineLength++] = b;
+      }
+
+      this.split();
+      return true;
+   }
+
+   public int getTokenCount() {
+      return tokenCount;
+   }
+
+   public boolean tokenEquals(int token, byte[] key)
+   {
+      int start = this.starts[token];
+      int length = this.ends[token] - start;
+      if (length != key.length)
+      {
+         return false;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         if (this.line[start + i] != key[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /*
+      Parses a decimal int with an optional sign, throwing
+      NumberFormatException the way Integer.parseInt would.
+   */
+   public int intToken(int token)
+   {
+      int pos = this.starts[token];
+      int end = this.ends[token];
+      boolean negative = false;
+
+      if (pos < end && (this.line[pos] == '-' || this.line[pos] == '+'))
+      {
+         negative = this.line[pos] == '-';
+         pos++;
+      }
+      if (pos == end)
+      {
+         throw new NumberFormatException();
+      }
+
+      long value = 0;
+      for (; pos < end; pos++)
+      {
+         int digit = this.line[pos] - '0';
+         if (digit < 0 || digit > 9)
+         {
+            throw new NumberFormatException();
+         }
+         value = value * 10 + digit;
+         if (value > (long)Integer.MAX_VALUE + 1)
+         {
+            throw new NumberFormatException();
+         }
+      }
+
+      value = negative ? -value : value;
+      if (value > Integer.MAX_VALUE)
+      {
+         throw new NumberFormatException();
+      }
+      return (int)value;
+   }
+
+   public String stringToken(int token)
+   {
+      return new String(this.line, this.starts[token],
+              this.ends[token] - this.starts[token], StandardCharsets.UTF_8);
+   }
+
+   /*
+      Returns the same String instance for every occurrence of a token's
+      bytes, so the few distinct background and image keys are only
+      decoded once per file.
+   */
+   public String internedToken(int token)
+   {
+      int start = this.starts[token];
+      int length = this.ends[token] - start;
+      int hash = 1;
+      for (int i = 0; i < length; i++)
+      {
+         hash = 31 * hash + this.line[start + i];
+      }
+
+      int mask = this.interned.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+      {
+         byte[] key = this.internedKeys[slot];
+         if (key == null)
+         {
+            String value = this.stringToken(token);
+            this.internedKeys[slot] = Arrays.copyOfRange(this.line, start,
+                    start + length);
+            this.internedHashes[slot] = hash;
+            this.interned[slot] = value;
+            if (++this.internedCount * 2 > this.interned.length)
+            {
+               this.growInterned();
+            }
+            return value;
+         }
+         if (this.internedHashes[slot] == hash && this.matches(key, start, length))
+         {
+            return this.interned[slot];
+         }
+      }
+   }
+
+   private boolean matches(byte[] key, int start, int length)
+   {
+      if (key.length != length)
+      {
+         return false;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         if (key[i] != this.line[start + i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void growInterned()
+   {
+      byte[][] oldKeys = this.internedKeys;
+      int[] oldHashes = this.internedHashes;
+      String[] oldValues = this.interned;
+      this.internedKeys = new byte[oldKeys.length * 2][];
+      this.internedHashes = new int[oldKeys.length * 2];
+      this.interned = new String[oldKeys.length * 2];
+      int mask = this.interned.length - 1;
+      for (int i = 0; i < oldKeys.length; i++)
+      {
+         if (oldKeys[i] != null)
+         {
+            int slot = oldHashes[i] & mask;
+            while (this.internedKeys[slot] != null)
+            {
+               slot = (slot + 1) & mask;
+            }
+            this.internedKeys[slot] = oldKeys[i];
+            this.internedHashes[slot] = oldHashes[i];
+            this.interned[slot] = oldValues[i];
+         }
+      }
+   }
+
+   private void split()
+   {
+      this.tokenCount = 0;
+      int pos = 0;
+      while (pos < this.lineLength)
+      {
+         while (pos < this.lineLength && isWhitespace(this.line[pos]))
+         {
+            pos++;
+         }
+         if (pos == this.lineLength)
+         {
+            break;
+         }
+
+         int start = pos;
+         while (pos < this.lineLength && !isWhitespace(this.line[pos]))
+         {
+            pos++;
+         }
+         if (this.tokenCount < MAX_TOKENS)
+         {
+            this.starts[this.tokenCount] = start;
+            this.ends[this.tokenCount] = pos;
+         }
+         this.tokenCount++;
+      }
+   }
+
+   private static boolean isWhitespace(byte b)
+   {
+      return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+   }
+}
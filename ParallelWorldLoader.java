@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ParallelWorldLoader: loads a world.sav text file on several threads
+The file is cut into byte ranges that start and end on line boundaries, and
+each range is tokenized on its own thread into a batch of decoded lines.
+Nothing touches the WorldModel until every batch is ready; the batches are
+then applied in file order on the calling thread, so later background lines
+still overwrite earlier ones, an entity on an occupied cell still loses to
+the earlier line, and errors are reported with the same line numbers and in
+the same order as Functions.load.
+ */
+
+final class ParallelWorldLoader
+{
+   /* below this, splitting costs more than it saves */
+   private static final long MIN_CHUNK_BYTES = 1 << 20;
+   /* a single mapping cannot exceed 2GB */
+   private static final long MAX_CHUNK_BYTES = 1 << 30;
+
+   private ParallelWorldLoader()
+   {
+   }
+
+   public static void load(Path file, WorldModel world, ImageStore imageStore,
+      int threads) throws IOException
+   {
+      List<Batch> batches = new ArrayList<>();
+
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         long size = channel.size();
+         int chunks = (int)Math.max(1, Math.min(threads, size / MIN_CHUNK_BYTES));
+         chunks = (int)Math.max(chunks, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+
+         long start = 0;
+         for (int i = 1; i <= chunks && start < size; i++)
+         {
+            long end = i == chunks ? size
+                    : nextLineStart(channel, Math.max(start, size * i / chunks));
+            if (end > start)
+            {
+               batches.add(new Batch(channel.map(FileChannel.MapMode.READ_ONLY,
+                       start, end - start)));
+            }
+            start = end;
+         }
+      }
+
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (Batch batch : batches)
+      {
+         tasks.add(ForkJoinPool.commonPool().submit(() -> {
+            batch.parse();
+            return null;
+         }));
+      }
+      for (ForkJoinTask<?> task : tasks)
+      {
+         task.join();
+      }
+
+      Functions.LoadTarget target = Functions.worldTarget(world, imageStore);
+      int firstLine = 0;
+      for (Batch batch : batches)
+      {
+         batch.apply(target, firstLine);
+         firstLine += batch.lineCount;
+      }
+   }
+
+   /*
+      The offset just past the first '\n' at or after pos, or the end of
+      the file if there is none.
+   */
+   private static long nextLineStart(FileChannel channel, long pos)
+      throws IOException
+   {
+      ByteBuffer probe = ByteBuffer.allocate(4096);
+      while (true)
+      {
+         probe.clear();
+         int read = channel.read(probe, pos);
+         if (read <= 0)
+         {
+            return channel.size();
+         }
+         for (int i = 0; i < read; i++)
+         {
+            if (probe.get(i) == '\n')
+            {
+               return pos + i + 1;
+            }
+         }
+         pos += read;
+      }
+   }
+
+   /*
+      The decoded lines of one byte range, kept in columns. Entity lines and
+      malformed lines are both stored in line order with their line number
+      within the range, so apply can interleave their messages exactly as
+      a sequential load would print them.
+   */
+   private static final class Batch implements Functions.LoadTarget
+   {
+      private static final int NO_LINE = Integer.MAX_VALUE;
+
+      private final ByteBuffer bytes;
+      private int lineCount;
+      private int currentLine;
+
+      private int backgroundCount;
+      private int[] backgroundXs = new int[256];
+      private int[] backgroundYs = new int[256];
+      private String[] backgroundIds = new String[256];
+
+      private int entityCount;
+      private int[] entityLines = new int[64];
+      private EntityKind[] entityKinds = new EntityKind[64];
+      private String[] entityIds = new String[64];
+      private int[] entityFields = new int[64 * 5];
+
+      private int invalidCount;
+      private int[] invalidLines = new int[16];
+
+      Batch(ByteBuffer bytes)
+      {
+         this.bytes = bytes;
+      }
+
+      void parse() throws IOException
+      {
+         LineTokenizer tokens = new LineTokenizer(new BufferStream(this.bytes));
+         while (tokens.nextLine())
+         {
+            this.currentLine = this.lineCount;
+            try
+            {
+               if (!Functions.processTokens(tokens, this))
+               {
+                  this.addInvalid(this.currentLine);
+               }
+            }
+            catch (NumberFormatException e)
+            {
+               this.addInvalid(this.currentLine);
+            }
+            this.lineCount++;
+         }
+      }
+
+      void apply(Functions.LoadTarget target, int firstLine)
+      {
+         for (int i = 0; i < this.backgroundCount; i++)
+         {
+            target.addBackground(this.backgroundXs[i], this.backgroundYs[i],
+                    this.backgroundIds[i]);
+         }
+
+         int entity = 0;
+         int invalid = 0;
+         while (entity < this.entityCount || invalid < this.invalidCount)
+         {
+            int entityLine = entity < this.entityCount
+                    ? this.entityLines[entity] : NO_LINE;
+            int invalidLine = invalid < this.invalidCount
+                    ? this.invalidLines[invalid] : NO_LINE;
+
+            if (invalidLine < entityLine)
+            {
+               System.err.println(String.format("invalid entry on line %d",
+                       firstLine + invalidLine));
+               invalid++;
+            }
+            else
+            {
+               int field = entity * 5;
+               try
+               {
+                  if (!target.addEntity(this.entityKinds[entity],
+                          this.entityIds[entity],
+                          this.entityFields[field],
+                          this.entityFields[field + 1],
+                          this.entityFields[field + 2],
+                          this.entityFields[field + 3],
+                          this.entityFields[field + 4]))
+                  {
+                     System.err.println(String.format(
+                             "invalid entry on line %d", firstLine + entityLine));
+                  }
+               }
+               catch (IllegalArgumentException e)
+               {
+                  System.err.println(String.format("issue on line %d: %s",
+                          firstLine + entityLine, e.getMessage()));
+               }
+               entity++;
+            }
+         }
+      }
+
+      public void addBackground(int x, int y, String id)
+      {
+         if (this.backgroundCount == this.backgroundXs.length)
+         {
+            int capacity = this.backgroundCount * 2;
+            this.backgroundXs = Arrays.copyOf(this.backgroundXs, capacity);
+            this.backgroundYs = Arrays.copyOf(this.backgroundYs, capacity);
+            this.backgroundIds = Arrays.copyOf(this.backgroundIds, capacity);
+         }
+         this.backgroundXs[this.backgroundCount] = x;
+         this.backgroundYs[this.backgroundCount] = y;
+         this.backgroundIds[this.backgroundCount] = id;
+         this.backgroundCount++;
+      }
+
+      public boolean addEntity(EntityKind kind, String id, int x, int y,
+         int resourceLimit, int actionPeriod, int animationPeriod)
+      {
+         if (this.entityCount == this.entityLines.length)
+         {
+            int capacity = this.entityCount * 2;
+            this.entityLines = Arrays.copyOf(this.entityLines, capacity);
+            this.entityKinds = Arrays.copyOf(this.entityKinds, capacity);
+            this.entityIds = Arrays.copyOf(this.entityIds, capacity);
+            this.entityFields = Arrays.copyOf(this.entityFields, capacity * 5);
+         }
+         int field = this.entityCount * 5;
+         this.entityLines[this.entityCount] = this.currentLine;
+         this.entityKinds[this.entityCount] = kind;
+         this.entityIds[this.entityCount] = id;
+         this.entityFields[field] = x;
+         this.entityFields[field + 1] = y;
+         this.entityFields[field + 2] = resourceLimit;
+         this.entityFields[field + 3] = actionPeriod;
+         this.entityFields[field + 4] = animationPeriod;
+         this.entityCount++;
+         return true;
+      }
+
+      private void addInvalid(int line)
+      {
+         if (this.invalidCount == this.invalidLines.length)
+         {
+            this.invalidLines = Arrays.copyOf(this.invalidLines,
+                    this.invalidCount * 2);
+         }
+         this.invalidLines[this.invalidCount++] = line;
+      }
+   }
+
+   /* lets LineTokenizer read straight out of a mapped range */
+   private static final class BufferStream extends InputStream
+   {
+      private final ByteBuffer buffer;
+
+      BufferStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      public int read()
+      {
+         return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+      }
+
+      public int read(byte[] dest, int off, int len)
+      {
+         if (!this.buffer.hasRemaining())
+         {
+            return -1;
+         }
+         int count = Math.min(len, this.buffer.remaining());
+         this.buffer.get(dest, off, count);
+         return count;
+      }
+   }
+}
@@ -0,0 +1,10 @@
+/*
+PixelKeyer: replaces every pixel whose colour matches a key colour, ignoring
+alpha; Functions.setAlpha picks the fastest implementation available
+ */
+
+interface PixelKeyer
+{
+   /* pixels whose low 24 bits equal keyColor become replacement */
+   void key(int[] pixels, int keyColor, int replacement);
+}
@@ -1,3 +1,10 @@
+/*
+Point: an (x, y) grid coordinate
+Hot paths pass coordinates around packed into a single long (row in the high
+half, column in the low half) using the static helpers below, and only create
+Point objects where they cross the public API.
+ */
+
 final class Point
 {
    public final int x;
@@ -42,4 +49,43 @@ final class Point
 
       return deltaX * deltaX + deltaY * deltaY;
    }
+
+   public long pack()
+   {
+      return pack(this.x, this.y);
+   }
+
+   public static long pack(int x, int y)
+   {
+      return ((long)y << 32) | (x & 0xffffffffL);
+   }
+
+   public static int x(long packed)
+   {
+      return (int)packed;
+   }
+
+   public static int y(long packed)
+   {
+      return (int)(packed >> 32);
+   }
+
+   public static Point unpack(long packed)
+   {
+      return new Point(x(packed), y(packed));
+   }
+
+   public static boolean adjacent(long p1, long p2)
+   {
+      return (x(p1) == x(p2) && Math.abs(y(p1) - y(p2)) == 1) ||
+              (y(p1) == y(p2) && Math.abs(x(p1) - x(p2)) == 1);
+   }
+
+   public static int distanceSquared(long p1, long p2)
+   {
+      int deltaX = x(p1) - x(p2);
+      int deltaY = y(p1) - y(p2);
+
+      return deltaX * deltaX + deltaY * deltaY;
+   }
 }
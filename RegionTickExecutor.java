@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/*
+RegionTickExecutor: runs one tick's due events across cores by splitting the
+world grid into rectangular regions
+Every action only touches the cell its entity stands on and the cells next to
+it, so entities strictly inside a region can never interfere with those inside
+another region and are run concurrently, one task per region. Entities on the
+edge of a region are the only ones whose moves, spawns and kills can cross
+into a neighbouring region; their events are deferred and run serially, in
+their original order, once every region has finished.
+Each region task draws from a Random of its own, seeded from Functions.rand
+on the calling thread in region order, so regions do not share one sequence
+and each region's draws follow from the seed. Which entity gets which draw
+still depends on the order events with equal times come off the queue,
+which concurrent scheduling can change, so region runs are not repeatable
+the way single-threaded ones are.
+ */
+
+final class RegionTickExecutor
+{
+   /* the Random of the region task running on this thread, if any */
+   private static final ThreadLocal<Random> REGION_RANDOM = new ThreadLocal<>();
+
+   private final ForkJoinPool pool;
+   private final int numRows;
+   private final int numCols;
+   private final int regionRows;
+   private final int regionCols;
+
+   /*
+      Region sides are rounded up to a multiple of alignment, so a grid kept
+      in chunks of that size never has one chunk written by two regions;
+      see WorldModel.getRegionAlignment.
+   */
+   public RegionTickExecutor(int numRows, int numCols, int regionsDown,
+      int regionsAcross, int alignment)
+   {
+      this.pool = ForkJoinPool.commonPool();
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.regionRows = alignUp(
+              Math.max(1, (numRows + regionsDown - 1) / regionsDown), alignment);
+      this.regionCols = alignUp(
+              Math.max(1, (numCols + regionsAcross - 1) / regionsAcross), alignment);
+   }
+
+   private static int alignUp(int size, int alignment)
+   {
+      return (size + alignment - 1) / alignment * alignment;
+   }
+
+   /* what actions draw random numbers from: their region's, or Functions.rand */
+   public static Random random()
+   {
+      Random random = REGION_RANDOM.get();
+      return random == null ? Functions.rand : random;
+   }
+
+   public int getRegionCount()
+   {
+      return ((this.numRows + this.regionRows - 1) / this.regionRows) *
+              ((this.numCols + this.regionCols - 1) / this.regionCols);
+   }
+
+   public void execute(List<Event> due, Consumer<Event> runner)
+   {
+      int regionsAcross = (this.numCols + this.regionCols - 1) / this.regionCols;
+      List<List<Event>> regions = new ArrayList<>();
+      for (int i = 0; i < this.getRegionCount(); i++)
+      {
+         regions.add(new ArrayList<>());
+      }
+      List<Event> deferred = new ArrayList<>();
+
+      for (Event event : due)
+      {
+         int x = event.getEntity().getX();
+         int y = event.getEntity().getY();
+
+         if (this.isInterior(x, y))
+         {
+            regions.get((y / this.regionRows) * regionsAcross +
+                    x / this.regionCols).add(event);
+         }
+         else
+         {
+            deferred.add(event);
+         }
+      }
+
+      List<RecursiveAction> tasks = new ArrayList<>();
+      for (List<Event> region : regions)
+      {
+         if (!region.isEmpty())
+         {
+            long seed = Functions.rand.nextLong();
+            tasks.add(new RecursiveAction()
+            {
+               protected void compute()
+               {
+                  REGION_RANDOM.set(new Random(seed));
+                  try
+                  {
+                     region.forEach(runner);
+                  }
+                  finally
+                  {
+                     REGION_RANDOM.remove();
+                  }
+               }
+            });
+         }
+      }
+      this.pool.invoke(new RecursiveAction()
+      {
+         protected void compute()
+         {
+            invokeAll(tasks);
+         }
+      });
+
+      deferred.forEach(runner);
+   }
+
+   /*
+      Interior cells are those whose neighbours all lie in the same region.
+      The outer edge of the world does not border another region, so cells
+      along it still count as interior.
+   */
+   private boolean isInterior(int x, int y)
+   {
+      if (y < 0 || y >= this.numRows || x < 0 || x >= this.numCols)
+      {
+         return false;
+      }
+
+      int rowInRegion = y % this.regionRows;
+      int colInRegion = x % this.regionCols;
+
+      return (rowInRegion != 0 || y == 0) &&
+              (rowInRegion != this.regionRows - 1 || y == this.numRows - 1) &&
+              (colInRegion != 0 || x == 0) &&
+              (colInRegion != this.regionCols - 1 || x == this.numCols - 1);
+   }
+}
@@ -0,0 +1,201 @@
+import java.util.List;
+import java.util.Set;
+
+import processing.core.PImage;
+
+/*
+RenderSnapshot: the entities as WorldView needs them, copied at the end of a tick
+Each entity contributes its position, its stored frame and the timing of a
+clock-driven animation; its images and kind never change, so the snapshot
+keeps a reference to the entity for them. A snapshot is never changed once
+built. The simulation thread publishes a new one after every tick, and the
+drawing thread reads it without locking while the next tick runs.
+Entities are grouped by row with a counting sort, so drawing the viewport
+only looks at the rows in view. A world with an EntityStore is copied
+straight from the store's arrays.
+ */
+
+final class RenderSnapshot
+{
+   private final long time;
+   /* entities of row r are at rowStarts[r] up to rowStarts[r + 1] */
+   private final int[] rowStarts;
+   private final Entity[] entities;
+   private final long[] positions;
+   private final int[] imageIndices;
+   private final long[] animationStarts;
+   private final int[] frameMillis;
+   private final int[] animationSteps;
+
+   private RenderSnapshot(long time, int[] rowStarts, Entity[] entities,
+      long[] positions, int[] imageIndices, long[] animationStarts,
+      int[] frameMillis, int[] animationSteps)
+   {
+      this.time = time;
+      this.rowStarts = rowStarts;
+      this.entities = entities;
+      this.positions = positions;
+      this.imageIndices = imageIndices;
+      this.animationStarts = animationStarts;
+      this.frameMillis = frameMillis;
+      this.animationSteps = animationSteps;
+   }
+
+   /* when the snapshot was taken, on the scheduler's clock */
+   public long getTime() {
+      return time;
+   }
+
+   public int getEntityCount() {
+      return entities.length;
+   }
+
+   /*
+      Copies the world's entities; must run on the thread that changes the
+      world, between ticks.
+   */
+   public static RenderSnapshot capture(WorldModel world, long time)
+   {
+      if (world.getEntityStore() != null)
+      {
+         return capture(world.getEntityStore(), world.getNumRows(), time);
+      }
+
+      Set<Entity> live = world.getEntities();
+      int numRows = world.getNumRows();
+      int count = live.size();
+      int[] rowStarts = new int[numRows + 1];
+      Entity[] byRow = new Entity[count];
+      long[] positions = new long[count];
+
+      for (Entity entity : live)
+      {
+         rowStarts[entity.getY() + 1]++;
+      }
+      int[] next = sumRows(rowStarts, numRows);
+
+      for (Entity entity : live)
+      {
+         long position = entity.getPackedPosition();
+         int index = next[Point.y(position)]++;
+         byRow[index] = entity;
+         positions[index] = position;
+      }
+
+      int[] imageIndices = new int[count];
+      long[] animationStarts = new long[count];
+      int[] frameMillis = new int[count];
+      int[] animationSteps = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         Entity entity = byRow[i];
+         imageIndices[i] = entity.getImageIndex();
+         frameMillis[i] = entity.getFrameMillis();
+         if (frameMillis[i] != 0)
+         {
+            animationStarts[i] = entity.getAnimationStart();
+            animationSteps[i] = entity.getAnimationSteps();
+         }
+      }
+
+      return new RenderSnapshot(time, rowStarts, byRow, positions,
+              imageIndices, animationStarts, frameMillis, animationSteps);
+   }
+
+   /*
+      As above for a world keeping its entities in an EntityStore: the
+      store's arrays are read slot by slot, front to back, and an Entity
+      is only touched to keep a reference to it.
+   */
+   private static RenderSnapshot capture(EntityStore store, int numRows,
+      long time)
+   {
+      int highWater = store.getHighWater();
+      int[] rowStarts = new int[numRows + 1];
+      int count = 0;
+
+      for (int slot = 0; slot < highWater; slot++)
+      {
+         if (store.isLive(slot))
+         {
+            rowStarts[Point.y(store.getPosition(slot)) + 1]++;
+            count++;
+         }
+      }
+      int[] next = sumRows(rowStarts, numRows);
+
+      Entity[] byRow = new Entity[count];
+      long[] positions = new long[count];
+      int[] imageIndices = new int[count];
+      long[] animationStarts = new long[count];
+      int[] frameMillis = new int[count];
+      int[] animationSteps = new int[count];
+      for (int slot = 0; slot < highWater; slot++)
+      {
+         if (!store.isLive(slot))
+         {
+            continue;
+         }
+         long position = store.getPosition(slot);
+         int index = next[Point.y(position)]++;
+         byRow[index] = store.getHandle(slot);
+         positions[index] = position;
+         imageIndices[index] = store.getImageIndex(slot);
+         frameMillis[index] = store.getFrameMillis(slot);
+         if (frameMillis[index] != 0)
+         {
+            animationStarts[index] = store.getAnimationStart(slot);
+            animationSteps[index] = store.getAnimationSteps(slot);
+         }
+      }
+
+      return new RenderSnapshot(time, rowStarts, byRow, positions,
+              imageIndices, animationStarts, frameMillis, animationSteps);
+   }
+
+   /*
+      Turns per-row counts (row r's at r + 1) into row starts, returning
+      each row's next free index.
+   */
+   private static int[] sumRows(int[] rowStarts, int numRows)
+   {
+      for (int row = 0; row < numRows; row++)
+      {
+         rowStarts[row + 1] += rowStarts[row];
+      }
+      int[] next = new int[numRows];
+      System.arraycopy(rowStarts, 0, next, 0, numRows);
+      return next;
+   }
+
+   /*
+      Calls the visitor with the position and the frame at the given time
+      of every entity in the rectangle of cells starting at (col, row).
+   */
+   public void forEachIn(int col, int row, int numCols, int numRows,
+      long time, ImageVisitor visitor)
+   {
+      int rows = this.rowStarts.length - 1;
+      int top = Math.min(Math.max(row, 0), rows);
+      int bottom = Math.min(Math.max(row + numRows, top), rows);
+
+      for (int i = this.rowStarts[top]; i < this.rowStarts[bottom]; i++)
+      {
+         long position = this.positions[i];
+         int x = Point.x(position);
+         if (x >= col && x < col + numCols)
+         {
+            List<PImage> images = this.entities[i].getImages();
+            visitor.visit(position, images.get(Entity.animationFrame(
+                    this.imageIndices[i], images.size(), time,
+                    this.animationStarts[i], this.frameMillis[i],
+                    this.animationSteps[i])));
+         }
+      }
+   }
+
+   interface ImageVisitor
+   {
+      void visit(long position, PImage image);
+   }
+}
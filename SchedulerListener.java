@@ -0,0 +1,17 @@
+/*
+SchedulerListener: told whenever an EventScheduler adds a pending event or
+drops one, either because it is about to run or because it was unscheduled,
+and when a tick has finished running the events due before a time
+Event calls are made while the scheduler's lock is held. When ticked is
+called every event due before ranBefore has run, and none is still pending.
+ */
+
+interface SchedulerListener
+{
+   void eventScheduled(Event event);
+
+   /* ran is true when the event was dropped to run it */
+   void eventRemoved(Event event, boolean ran);
+
+   void ticked(long time, long ranBefore);
+}
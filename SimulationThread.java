@@ -0,0 +1,118 @@
+/*
+SimulationThread: runs the EventScheduler on a thread of its own
+Every tick period it runs the events that are due, saves a checkpoint when
+one is due and publishes a RenderSnapshot of the world, then sleeps until
+the next tick. While it runs only this thread changes the world, and the
+drawing thread draws the last published snapshot, so a slow tick no longer
+delays a frame and a slow frame no longer delays a tick.
+It is stopped with a flag rather than interrupted, since an interrupt would
+close the checkpoint's or journal's file channel in the middle of a write.
+A tick that throws stops the thread: the failure is reported and kept for
+getFailure, and no checkpoint of the half-run tick is saved.
+ */
+
+final class SimulationThread
+   extends Thread
+{
+   private final WorldModel world;
+   private final EventScheduler scheduler;
+   private final long tickMillis;
+   /* null when no checkpoints are kept */
+   private final WorldCheckpoint checkpoint;
+   private final long checkpointMillis;
+   private volatile RenderSnapshot snapshot;
+   private volatile boolean running;
+   private volatile long ticks;
+   private volatile RuntimeException failure;
+
+   public SimulationThread(WorldModel world, EventScheduler scheduler,
+      long tickMillis, WorldCheckpoint checkpoint, long checkpointMillis)
+   {
+      super("simulation");
+      this.setDaemon(true);
+      this.world = world;
+      this.scheduler = scheduler;
+      this.tickMillis = tickMillis;
+      this.checkpoint = checkpoint;
+      this.checkpointMillis = checkpointMillis;
+      this.running = true;
+      this.snapshot = RenderSnapshot.capture(world,
+              scheduler.getClock().currentTimeMillis());
+   }
+
+   /* the world as of the last tick; never null */
+   public RenderSnapshot getSnapshot() {
+      return snapshot;
+   }
+
+   public long getTicks() {
+      return ticks;
+   }
+
+   /* what stopped the simulation, or null while it runs or if it was shut down */
+   public RuntimeException getFailure() {
+      return failure;
+   }
+
+   public void run()
+   {
+      try
+      {
+         this.runTicks();
+      }
+      catch (RuntimeException e)
+      {
+         this.failure = e;
+         this.running = false;
+         System.err.println(String.format(
+                 "simulation stopped after %d ticks: %s", this.ticks, e));
+         e.printStackTrace();
+      }
+   }
+
+   private void runTicks()
+   {
+      Clock clock = this.scheduler.getClock();
+      long nextCheckpoint = clock.currentTimeMillis() + this.checkpointMillis;
+
+      while (this.running)
+      {
+         long time = clock.currentTimeMillis();
+         this.scheduler.updateOnTime(time);
+         if (this.checkpoint != null && time >= nextCheckpoint)
+         {
+            this.checkpoint.checkpoint();
+            nextCheckpoint = time + this.checkpointMillis;
+         }
+         this.snapshot = RenderSnapshot.capture(this.world, time);
+         this.ticks++;
+
+         long wait = time + this.tickMillis - clock.currentTimeMillis();
+         if (wait > 0)
+         {
+            try
+            {
+               Thread.sleep(wait);
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+         }
+      }
+   }
+
+   /* stops once the tick in progress is done, and waits for that */
+   public void shutdown()
+   {
+      this.running = false;
+      try
+      {
+         this.join();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/*
+SpatialIndex: entities bucketed by kind and by square block of the world grid,
+so WorldModel.findNearest only has to look at the blocks around a position
+Blocks are searched ring by ring outwards from the one holding the position,
+stopping once no block further out could beat the best match so far. Ties on
+distance go to the entity that was added to the world first, matching a scan
+of WorldModel's entities in order.
+ */
+
+final class SpatialIndex
+{
+   private static final int BLOCK_BITS = 3;
+
+   private final Map<EntityKind, Map<Long, List<Entity>>> blocks;
+   private final int maxBlockRow;
+   private final int maxBlockCol;
+
+   public SpatialIndex(int numRows, int numCols)
+   {
+      this.blocks = new EnumMap<>(EntityKind.class);
+      for (EntityKind kind : EntityKind.values())
+      {
+         this.blocks.put(kind, new HashMap<>());
+      }
+      this.maxBlockRow = (numRows - 1) >> BLOCK_BITS;
+      this.maxBlockCol = (numCols - 1) >> BLOCK_BITS;
+   }
+
+   public void add(Entity entity, long pos)
+   {
+      this.blocks.get(entity.getKind())
+              .computeIfAbsent(blockKey(pos),
+                      key -> new ArrayList<>())
+              .add(entity);
+   }
+
+   public void remove(Entity entity, long pos)
+   {
+      Map<Long, List<Entity>> ofKind = this.blocks.get(entity.getKind());
+      long key = blockKey(pos);
+      List<Entity> block = ofKind.get(key);
+
+      if (block != null)
+      {
+         block.remove(entity);
+         if (block.isEmpty())
+         {
+            ofKind.remove(key);
+         }
+      }
+   }
+
+   public void move(Entity entity, long from, long to)
+   {
+      if (blockKey(from) != blockKey(to))
+      {
+         this.remove(entity, from);
+         this.add(entity, to);
+      }
+   }
+
+   public Optional<Entity> findNearest(long pos, EntityKind kind)
+   {
+      Map<Long, List<Entity>> ofKind = this.blocks.get(kind);
+      if (ofKind.isEmpty())
+      {
+         return Optional.empty();
+      }
+
+      int blockCol = Point.x(pos) >> BLOCK_BITS;
+      int blockRow = Point.y(pos) >> BLOCK_BITS;
+      int maxRing = Math.max(
+              Math.max(blockCol, this.maxBlockCol - blockCol),
+              Math.max(blockRow, this.maxBlockRow - blockRow));
+
+      Entity nearest = null;
+      int nearestDistance = Integer.MAX_VALUE;
+
+      for (int ring = 0; ring <= maxRing; ring++)
+      {
+         if (nearest != null &&
+                 ringGap(pos, blockCol, blockRow, ring) > nearestDistance)
+         {
+            break;
+         }
+
+         for (int row = blockRow - ring; row <= blockRow + ring; row++)
+         {
+            boolean edgeRow = row == blockRow - ring || row == blockRow + ring;
+            int step = edgeRow || ring == 0 ? 1 : 2 * ring;
+
+            for (int col = blockCol - ring; col <= blockCol + ring; col += step)
+            {
+               List<Entity> block = ofKind.get(blockKey(col, row));
+               if (block == null)
+               {
+                  continue;
+               }
+
+               for (Entity other : block)
+               {
+                  int otherDistance = Point.distanceSquared(
+                          other.getPackedPosition(), pos);
+
+                  if (otherDistance < nearestDistance ||
+                          (otherDistance == nearestDistance &&
+                                  other.getSequence() < nearest.getSequence()))
+                  {
+                     nearest = other;
+                     nearestDistance = otherDistance;
+                  }
+               }
+            }
+         }
+      }
+
+      return Optional.ofNullable(nearest);
+   }
+
+   /*
+      The smallest squared distance from pos to any cell outside the blocks
+      of rings 0 .. ring - 1.
+   */
+   private static int ringGap(long pos, int blockCol, int blockRow, int ring)
+   {
+      int left = Point.x(pos) - ((blockCol - ring + 1) << BLOCK_BITS) + 1;
+      int right = ((blockCol + ring) << BLOCK_BITS) - Point.x(pos);
+      int top = Point.y(pos) - ((blockRow - ring + 1) << BLOCK_BITS) + 1;
+      int bottom = ((blockRow + ring) << BLOCK_BITS) - Point.y(pos);
+      int gap = Math.min(Math.min(left, right), Math.min(top, bottom));
+
+      return gap * gap;
+   }
+
+   private static long blockKey(long pos)
+   {
+      return blockKey(Point.x(pos) >> BLOCK_BITS, Point.y(pos) >> BLOCK_BITS);
+   }
+
+   private static long blockKey(int blockCol, int blockRow)
+   {
+      return Point.pack(blockCol, blockRow);
+   }
+}
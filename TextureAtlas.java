@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/*
+TextureAtlas: every sprite frame copied into a few large page images
+Frames are packed onto shelves, tallest first, and each keeps a one pixel
+border repeating its edge so filtering at the edges never samples a
+neighbour. Drawing a frame from its page means consecutive draws share one
+texture, which lets renderers such as P2D batch them instead of binding a
+new texture for every tile.
+Frames are looked up by identity, so the atlas has to be built once the
+images are loaded and keyed; frames added later are simply not in it, and
+ImageStore pins the frames it packs so the cache never replaces them.
+ */
+
+final class TextureAtlas
+{
+   public static final int DEFAULT_PAGE_SIZE = 2048;
+
+   private static final int BORDER = 1;
+
+   private final List<PImage> pages;
+   private final Map<PImage, Region> regions;
+
+   private TextureAtlas(List<PImage> pages, Map<PImage, Region> regions)
+   {
+      this.pages = pages;
+      this.regions = regions;
+   }
+
+   public List<PImage> getPages() {
+      return pages;
+   }
+
+   public int getFrameCount() {
+      return regions.size();
+   }
+
+   /* where a frame sits in the atlas, or null if it is not in it */
+   public Region regionFor(PImage frame)
+   {
+      return this.regions.get(frame);
+   }
+
+   /*
+      Packs the given frames into pages of at most pageSize square; a frame
+      too big for that gets a page of its own. Duplicates are packed once.
+   */
+   public static TextureAtlas build(List<PImage> frames, int pageSize)
+   {
+      List<PImage> unique = new ArrayList<>();
+      Map<PImage, Region> regions = new IdentityHashMap<>();
+      for (PImage frame : frames)
+      {
+         if (frame != null && frame.width > 0 && frame.height > 0
+                 && !regions.containsKey(frame))
+         {
+            regions.put(frame, null);
+            unique.add(frame);
+         }
+      }
+      unique.sort(Comparator.comparingInt((PImage frame) -> frame.height)
+              .reversed());
+
+      List<int[]> pageSizes = new ArrayList<>();
+      List<Integer> framePages = new ArrayList<>();
+      int[] open = null;
+      int openPage = -1;
+      int shelfX = 0;
+      int shelfY = 0;
+      int shelfHeight = 0;
+      int[] placed = new int[unique.size() * 2];
+
+      for (int i = 0; i < unique.size(); i++)
+      {
+         PImage frame = unique.get(i);
+         int width = frame.width + 2 * BORDER;
+         int height = frame.height + 2 * BORDER;
+
+         if (width > pageSize || height > pageSize)
+         {
+            pageSizes.add(new int[] { width, height });
+            framePages.add(pageSizes.size() - 1);
+            placed[i * 2] = BORDER;
+            placed[i * 2 + 1] = BORDER;
+            continue;
+         }
+
+         if (open != null && shelfX + width > pageSize)
+         {
+            shelfY += shelfHeight;
+            shelfX = 0;
+            shelfHeight = 0;
+         }
+         if (open == null || shelfY + height > pageSize)
+         {
+            open = new int[2];
+            pageSizes.add(open);
+            openPage = pageSizes.size() - 1;
+            shelfX = 0;
+            shelfY = 0;
+            shelfHeight = 0;
+         }
+
+         framePages.add(openPage);
+         placed[i * 2] = shelfX + BORDER;
+         placed[i * 2 + 1] = shelfY + BORDER;
+         shelfX += width;
+         shelfHeight = Math.max(shelfHeight, height);
+         open[0] = Math.max(open[0], shelfX);
+         open[1] = Math.max(open[1], shelfY + shelfHeight);
+      }
+
+      List<PImage> pages = new ArrayList<>();
+      for (int[] size : pageSizes)
+      {
+         pages.add(new PImage(size[0], size[1], PApplet.ARGB));
+      }
+      for (int i = 0; i < unique.size(); i++)
+      {
+         PImage frame = unique.get(i);
+         PImage page = pages.get(framePages.get(i));
+         int x = placed[i * 2];
+         int y = placed[i * 2 + 1];
+         copyWithBorder(frame, page, x, y);
+         regions.put(frame, new Region(page, x, y, frame.width, frame.height));
+      }
+      for (PImage page : pages)
+      {
+         page.updatePixels();
+      }
+
+      return new TextureAtlas(pages, regions);
+   }
+
+   /*
+      Copies a frame to (x, y) on the page and repeats its outermost pixels
+      into the border around it. Frames without an alpha channel are made
+      opaque, as the page has one.
+   */
+   private static void copyWithBorder(PImage frame, PImage page, int x, int y)
+   {
+      frame.loadPixels();
+      int opaque = frame.format == PApplet.RGB ? 0xff000000 : 0;
+
+      for (int row = -BORDER; row < frame.height + BORDER; row++)
+      {
+         int sourceRow = Math.min(Math.max(row, 0), frame.height - 1);
+         int target = (y + row) * page.width + x;
+         for (int col = -BORDER; col < frame.width + BORDER; col++)
+         {
+            int sourceCol = Math.min(Math.max(col, 0), frame.width - 1);
+            page.pixels[target + col] =
+                    frame.pixels[sourceRow * frame.width + sourceCol] | opaque;
+         }
+      }
+   }
+
+   /* one frame's rectangle on its page */
+   static final class Region
+   {
+      final PImage page;
+      final int x;
+      final int y;
+      final int width;
+      final int height;
+
+      Region(PImage page, int x, int y, int width, int height)
+      {
+         this.page = page;
+         this.x = x;
+         this.y = y;
+         this.width = width;
+         this.height = height;
+      }
+   }
+}
@@ -0,0 +1,542 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/*
+TileGrid: the background layer as small tile numbers into a shared palette
+Each distinct background id gets one Background in the palette, and a cell
+only stores its tile number: a byte per cell while there are at most 256
+ids, widening to a short after that. Cells live in 64x64 chunks that are
+allocated once something other than the default (tile 0) is set in them, so
+a huge map of default background costs next to nothing.
+Setting a cell to a Background whose id is already in the palette stores the
+palette's instance; get returns that shared instance.
+The save formats keep the background as the palette's ids followed by the
+cells' tile numbers as (tile, length) runs. writeRuns produces them straight
+from the chunks, a chunk width at a time for chunks never allocated, and
+readRuns sets them straight back into the chunks, skipping default runs
+over chunks never allocated, so both cost what the set tiles do rather than
+the whole map.
+A Snapshot freezes the grid in time proportional to its number of chunks,
+so its runs can be written on another thread: it shares the chunks, and the
+grid copies a shared chunk before its next change to it.
+ */
+
+final class TileGrid
+   implements WorldGrid<Background>
+{
+   public static final int MAX_TILES = 1 << 16;
+   /* written for cells left at the default or whose Background is null */
+   public static final short NO_TILE = -1;
+
+   private static final int CHUNK_BITS = 6;
+   private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int BYTE_TILES = 1 << 8;
+
+   private final List<Background> tiles;
+   private final Map<String, Integer> tileIndex;
+   private final int numRows;
+   private final int numCols;
+   private final int chunksAcross;
+   /* one of these is in use: narrow until the palette outgrows a byte */
+   private byte[][] narrowChunks;
+   private char[][] wideChunks;
+   /* chunks a Snapshot may still be reading, by chunk index */
+   private final BitSet shared;
+
+   public TileGrid(int numRows, int numCols, Background defaultBackground)
+   {
+      this.tiles = new ArrayList<>();
+      this.tileIndex = new HashMap<>();
+      this.tiles.add(defaultBackground);
+      this.tileIndex.put(idOf(defaultBackground), 0);
+
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.chunksAcross = (numCols + CHUNK_MASK) >> CHUNK_BITS;
+      int chunksDown = (numRows + CHUNK_MASK) >> CHUNK_BITS;
+      this.narrowChunks = new byte[chunksDown * this.chunksAcross][];
+      this.shared = new BitSet();
+   }
+
+   /*
+      The palette's Background for an id, added to the palette with the
+      given images if the id is new.
+   */
+   public Background tileFor(String id, ImageStore imageStore)
+   {
+      Integer tile = this.tileIndex.get(id);
+      if (tile != null)
+      {
+         return this.tiles.get(tile);
+      }
+      Background background = new Background(id, imageStore.getImageList(id));
+      this.addTile(background);
+      /* palette tiles last as long as the world, so their frames stay cached */
+      imageStore.retain(background.getImages());
+      return background;
+   }
+
+   private int tileAt(int x, int y)
+   {
+      int index = this.chunkIndex(x, y);
+      if (this.wideChunks != null)
+      {
+         char[] chunk = this.wideChunks[index];
+         return chunk == null ? 0 : chunk[cellIndex(x, y)];
+      }
+      byte[] chunk = this.narrowChunks[index];
+      return chunk == null ? 0 : chunk[cellIndex(x, y)] & 0xff;
+   }
+
+   public int getNumRows() {
+      return this.numRows;
+   }
+
+   public int getNumCols() {
+      return this.numCols;
+   }
+
+   public Background get(int x, int y)
+   {
+      return this.tiles.get(this.tileAt(x, y));
+   }
+
+   public void set(int x, int y, Background value)
+   {
+      Integer tile = this.tileIndex.get(idOf(value));
+      this.setTile(x, y, tile == null ? this.addTile(value) : tile);
+   }
+
+   private void setTile(int x, int y, int tile)
+   {
+      int index = this.chunkIndex(x, y);
+      if (this.wideChunks != null)
+      {
+         char[] chunk = this.wideChunks[index];
+         if (chunk == null || this.shared.get(index))
+         {
+            if (chunk == null && tile == 0)
+            {
+               return;
+            }
+            chunk = chunk == null ? new char[CHUNK_SIZE * CHUNK_SIZE] : chunk.clone();
+            this.wideChunks[index] = chunk;
+            this.shared.clear(index);
+         }
+         chunk[cellIndex(x, y)] = (char)tile;
+         return;
+      }
+
+      byte[] chunk = this.narrowChunks[index];
+      if (chunk == null || this.shared.get(index))
+      {
+         if (chunk == null && tile == 0)
+         {
+            return;
+         }
+         chunk = chunk == null ? new byte[CHUNK_SIZE * CHUNK_SIZE] : chunk.clone();
+         this.narrowChunks[index] = chunk;
+         this.shared.clear(index);
+      }
+      chunk[cellIndex(x, y)] = (byte)tile;
+   }
+
+   private int addTile(Background background)
+   {
+      int tile = this.tiles.size();
+      if (tile == MAX_TILES)
+      {
+         throw new IllegalStateException(String.format(
+                 "more than %d background ids", MAX_TILES));
+      }
+      if (tile == BYTE_TILES)
+      {
+         this.widen();
+      }
+      this.tiles.add(background);
+      this.tileIndex.put(idOf(background), tile);
+      return tile;
+   }
+
+   /* a cleared cell (null) gets a palette entry of its own */
+   private static String idOf(Background background)
+   {
+      return background == null ? null : background.getId();
+   }
+
+   private void widen()
+   {
+      this.wideChunks = new char[this.narrowChunks.length][];
+      for (int i = 0; i < this.narrowChunks.length; i++)
+      {
+         byte[] narrow = this.narrowChunks[i];
+         if (narrow != null)
+         {
+            char[] wide = new char[narrow.length];
+            for (int cell = 0; cell < narrow.length; cell++)
+            {
+               wide[cell] = (char)(narrow[cell] & 0xff);
+            }
+            this.wideChunks[i] = wide;
+         }
+      }
+      this.narrowChunks = null;
+      /* every chunk is a new array now */
+      this.shared.clear();
+   }
+
+   private int chunkIndex(int x, int y)
+   {
+      return (y >> CHUNK_BITS) * this.chunksAcross + (x >> CHUNK_BITS);
+   }
+
+   private static int cellIndex(int x, int y)
+   {
+      return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+   }
+
+   /*
+      Writes the ids of the palette's Backgrounds, then a run count and
+      one (short tile, int length) pair per run of cells, row by row. Tile
+      numbers index the ids written; cells at the default tile and null
+      Backgrounds get NO_TILE, as whatever reads them back starts from a
+      world at its own default.
+   */
+   public void writeRuns(DataOutput out) throws IOException
+   {
+      new Snapshot(this, this.narrowChunks, this.wideChunks).writeRuns(out);
+   }
+
+   /*
+      The grid as it is now, to write out later or on another thread; only
+      the chunk table is copied, in time proportional to the number of
+      chunks. Must run on the thread that sets cells.
+   */
+   public Snapshot snapshot()
+   {
+      int chunks = this.wideChunks != null
+              ? this.wideChunks.length : this.narrowChunks.length;
+      this.shared.set(0, chunks);
+      return new Snapshot(this,
+              this.narrowChunks == null ? null : this.narrowChunks.clone(),
+              this.wideChunks == null ? null : this.wideChunks.clone());
+   }
+
+   /*
+      Reads runs as writeRuns wrote them for a grid of savedRows by
+      savedCols into this one, dropping cells that fall outside it. tiles
+      maps the tile numbers in the runs to Backgrounds, and cells of NO_TILE
+      runs are left as they are. changed is given the packed position of
+      every cell set.
+   */
+   public void readRuns(ByteBuffer in, int savedRows, int savedCols,
+      Background[] tiles, LongConsumer changed)
+      throws IOException
+   {
+      int[] numbers = this.tileNumbers(tiles);
+      long cells = (long)savedRows * savedCols;
+      int runs = in.getInt();
+      long pos = 0;
+      for (int i = 0; i < runs; i++)
+      {
+         short tile = in.getShort();
+         int length = in.getInt();
+         if (length < 0 || length > cells - pos)
+         {
+            throw new IOException("background runs overflow the grid");
+         }
+         if (tile != NO_TILE)
+         {
+            this.fillRun(pos, length, savedCols, tileNumber(numbers, tile),
+                    changed);
+         }
+         pos += length;
+      }
+      if (pos != cells)
+      {
+         throw new IOException("background runs do not cover the grid");
+      }
+   }
+
+   /*
+      As readRuns, for the older layout of one tile number per cell, row by
+      row.
+   */
+   public void readCells(ByteBuffer in, int savedRows, int savedCols,
+      Background[] tiles, LongConsumer changed)
+      throws IOException
+   {
+      int[] numbers = this.tileNumbers(tiles);
+      long cells = (long)savedRows * savedCols;
+      long start = 0;
+      short tile = NO_TILE;
+      for (long pos = 0; pos < cells; pos++)
+      {
+         short next = in.getShort();
+         if (next != tile)
+         {
+            if (tile != NO_TILE)
+            {
+               this.fillRun(start, pos - start, savedCols,
+                       tileNumber(numbers, tile), changed);
+            }
+            start = pos;
+            tile = next;
+         }
+      }
+      if (tile != NO_TILE)
+      {
+         this.fillRun(start, cells - start, savedCols, tileNumber(numbers, tile),
+                 changed);
+      }
+   }
+
+   /* palette numbers for tiles; computed up front, as adding may widen */
+   private int[] tileNumbers(Background[] tiles)
+   {
+      int[] numbers = new int[tiles.length];
+      for (int i = 0; i < tiles.length; i++)
+      {
+         Integer tile = this.tileIndex.get(idOf(tiles[i]));
+         numbers[i] = tile == null ? this.addTile(tiles[i]) : tile;
+      }
+      return numbers;
+   }
+
+   private static int tileNumber(int[] numbers, short tile) throws IOException
+   {
+      if (tile < 0 || tile >= numbers.length)
+      {
+         throw new IOException(String.format("background tile %d is not in the save",
+                 tile));
+      }
+      return numbers[tile];
+   }
+
+   /*
+      Sets length cells from the row-major position start, in a grid
+      savedCols wide, to one tile, a chunk row segment at a time; default
+      segments over chunks never allocated are already right and are
+      skipped.
+   */
+   private void fillRun(long start, long length, int savedCols, int tile,
+      LongConsumer changed)
+   {
+      long pos = start;
+      long end = start + length;
+      while (pos < end)
+      {
+         long y = pos / savedCols;
+         if (y >= this.numRows)
+         {
+            return;
+         }
+         int x = (int)(pos % savedCols);
+         int rowEnd = (int)Math.min(savedCols, x + (end - pos));
+         pos += rowEnd - x;
+         int cellY = (int)y;
+         int lastX = Math.min(rowEnd, this.numCols);
+         while (x < lastX)
+         {
+            int segmentEnd = Math.min(lastX, (x | CHUNK_MASK) + 1);
+            if (tile != 0 || this.chunkAllocated(this.chunkIndex(x, cellY)))
+            {
+               for (int cellX = x; cellX < segmentEnd; cellX++)
+               {
+                  this.setTile(cellX, cellY, tile);
+                  changed.accept(Point.pack(cellX, cellY));
+               }
+            }
+            x = segmentEnd;
+         }
+      }
+   }
+
+   private boolean chunkAllocated(int index)
+   {
+      return this.wideChunks != null
+              ? this.wideChunks[index] != null : this.narrowChunks[index] != null;
+   }
+
+   /*
+      Calls visitor with every cell not at the default tile, a chunk at a
+      time, skipping chunks never allocated.
+   */
+   public void forEachSet(CellVisitor visitor)
+   {
+      int chunks = this.wideChunks != null
+              ? this.wideChunks.length : this.narrowChunks.length;
+      for (int index = 0; index < chunks; index++)
+      {
+         if (!this.chunkAllocated(index))
+         {
+            continue;
+         }
+         int left = (index % this.chunksAcross) << CHUNK_BITS;
+         int top = (index / this.chunksAcross) << CHUNK_BITS;
+         int right = Math.min(left + CHUNK_SIZE, this.numCols);
+         int bottom = Math.min(top + CHUNK_SIZE, this.numRows);
+         for (int y = top; y < bottom; y++)
+         {
+            for (int x = left; x < right; x++)
+            {
+               int tile = this.tileAt(x, y);
+               if (tile != 0)
+               {
+                  visitor.visit(x, y, this.tiles.get(tile));
+               }
+            }
+         }
+      }
+   }
+
+   interface CellVisitor
+   {
+      void visit(int x, int y, Background background);
+   }
+
+   /* the palette and chunk table of a grid at one moment, with its chunks */
+   static final class Snapshot
+   {
+      private final List<Background> tiles;
+      private final int numRows;
+      private final int numCols;
+      private final int chunksAcross;
+      private final byte[][] narrowChunks;
+      private final char[][] wideChunks;
+
+      private Snapshot(TileGrid grid, byte[][] narrowChunks,
+         char[][] wideChunks)
+      {
+         this.tiles = new ArrayList<>(grid.tiles);
+         this.numRows = grid.numRows;
+         this.numCols = grid.numCols;
+         this.chunksAcross = grid.chunksAcross;
+         this.narrowChunks = narrowChunks;
+         this.wideChunks = wideChunks;
+      }
+
+      public void writeRuns(DataOutput out) throws IOException
+      {
+         short[] written = new short[this.tiles.size()];
+         List<String> ids = new ArrayList<>();
+         for (int tile = 0; tile < written.length; tile++)
+         {
+            Background background = this.tiles.get(tile);
+            if (tile == 0 || background == null)
+            {
+               written[tile] = NO_TILE;
+            }
+            else
+            {
+               written[tile] = (short)ids.size();
+               ids.add(background.getId());
+            }
+         }
+         if (ids.size() > Short.MAX_VALUE + 1)
+         {
+            throw new IOException(String.format(
+                    "%d background ids do not fit a save", ids.size()));
+         }
+
+         out.writeInt(ids.size());
+         for (String id : ids)
+         {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+         }
+
+         /* once to count the runs, which come first, and once to write them */
+         RunWriter counter = new RunWriter(null);
+         this.walkRuns(written, counter);
+         out.writeInt(counter.runs);
+         this.walkRuns(written, new RunWriter(out));
+      }
+
+      private void walkRuns(short[] written, RunWriter runs) throws IOException
+      {
+         for (int y = 0; y < this.numRows; y++)
+         {
+            int chunkRow = (y >> CHUNK_BITS) * this.chunksAcross;
+            int rowStart = (y & CHUNK_MASK) << CHUNK_BITS;
+            for (int chunkCol = 0; chunkCol < this.chunksAcross; chunkCol++)
+            {
+               int width = Math.min(CHUNK_SIZE, this.numCols - (chunkCol << CHUNK_BITS));
+               int index = chunkRow + chunkCol;
+               if (this.wideChunks != null && this.wideChunks[index] != null)
+               {
+                  char[] chunk = this.wideChunks[index];
+                  for (int cell = rowStart; cell < rowStart + width; cell++)
+                  {
+                     runs.add(written[chunk[cell]], 1);
+                  }
+               }
+               else if (this.wideChunks == null && this.narrowChunks[index] != null)
+               {
+                  byte[] chunk = this.narrowChunks[index];
+                  for (int cell = rowStart; cell < rowStart + width; cell++)
+                  {
+                     runs.add(written[chunk[cell] & 0xff], 1);
+                  }
+               }
+               else
+               {
+                  runs.add(written[0], width);
+               }
+            }
+         }
+         runs.finish();
+      }
+   }
+
+   /* merges cells into runs and writes them out, or only counts them */
+   private static final class RunWriter
+   {
+      /* null to count only */
+      private final DataOutput out;
+      private int runs;
+      private short tile;
+      private int length;
+
+      RunWriter(DataOutput out)
+      {
+         this.out = out;
+      }
+
+      void add(short tile, int cells) throws IOException
+      {
+         /* a run's length is an int, so runs longer than that are split */
+         if (this.length > 0
+                 && (tile != this.tile || this.length > Integer.MAX_VALUE - cells))
+         {
+            this.finish();
+         }
+         this.tile = tile;
+         this.length += cells;
+      }
+
+      void finish() throws IOException
+      {
+         if (this.length > 0)
+         {
+            this.runs++;
+            if (this.out != null)
+            {
+               this.out.writeShort(this.tile);
+               this.out.writeInt(this.length);
+            }
+            this.length = 0;
+         }
+      }
+   }
+}
@@ -0,0 +1,295 @@
+import java.util.ArrayDeque;
+
+/*
+TimingWheelEventQueue: a hierarchical timing wheel engine for EventScheduler
+Level 0 has one slot per millisecond, and each coarser level covers a whole
+rotation of the level beneath it. Events are dropped straight into a slot
+(O(1) insert) and are cascaded down a level each time the cursor crosses into
+their slot, so expiry is amortized O(1) per event.
+Cancelled events are tombstoned in place and dropped whenever they are next
+touched; if they come to outnumber the live events every slot is swept.
+ */
+
+final class TimingWheelEventQueue
+   implements EventQueue
+{
+   private static final int WHEEL_BITS = 8;
+   private static final int WHEEL_SLOTS = 1 << WHEEL_BITS;
+   private static final int WHEEL_MASK = WHEEL_SLOTS - 1;
+   private static final int WHEEL_LEVELS = 4;
+   private static final int COMPACT_MIN_CANCELLED = 64;
+
+   private final ArrayDeque<Event>[][] wheels;
+   private final int[] levelCounts;
+   private final ArrayDeque<Event> overflow;
+   private final ArrayDeque<Event> ready;
+   private long cursor;
+   private int stored;
+   private int cancelledCount;
+
+   /*
+      startTime should be no later than the earliest time updateOnTime will
+      be called with; the wheel only ever moves forward from there.
+   */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public TimingWheelEventQueue(long startTime)
+   {
+      this.wheels = new ArrayDeque[WHEEL_LEVELS][WHEEL_SLOTS];
+      for (int level = 0; level < WHEEL_LEVELS; level++)
+      {
+         for (int slot = 0; slot < WHEEL_SLOTS; slot++)
+         {
+            this.wheels[level][slot] = new ArrayDeque<>();
+         }
+      }
+      this.levelCounts = new int[WHEEL_LEVELS];
+      this.overflow = new ArrayDeque<>();
+      this.ready = new ArrayDeque<>();
+      this.cursor = startTime - 1;
+   }
+
+   public void add(Event event)
+   {
+      this.place(event);
+      this.stored++;
+   }
+
+   public void cancel(Event event)
+   {
+      if (!event.isCancelled())
+      {
+         event.cancel();
+         this.cancelledCount++;
+
+         if (this.cancelledCount > COMPACT_MIN_CANCELLED &&
+                 this.cancelledCount > this.size())
+         {
+            this.compact();
+         }
+      }
+   }
+
+   public Event pollBefore(long time)
+   {
+      while (true)
+      {
+         if (this.ready.isEmpty())
+         {
+            this.advance(time - 1);
+         }
+
+         if (this.ready.isEmpty() || this.ready.peek().getTime() >= time)
+         {
+            return null;
+         }
+
+         Event next = this.ready.poll();
+         this.stored--;
+
+         if (!next.isCancelled())
+         {
+            return next;
+         }
+         this.cancelledCount--;
+      }
+   }
+
+   /*
+      Looks ahead without moving the cursor, so events added afterwards
+      still land in the right slots.
+   */
+   public long nextTime()
+   {
+      long earliest = earliestLive(this.ready);
+      if (earliest != Long.MAX_VALUE)
+      {
+         return earliest;
+      }
+
+      for (int level = 0; level < WHEEL_LEVELS; level++)
+      {
+         if (this.levelCounts[level] > 0)
+         {
+            int current = (int)(this.cursor >> (WHEEL_BITS * level)) & WHEEL_MASK;
+            for (int slot = current + 1; slot < WHEEL_SLOTS; slot++)
+            {
+               earliest = earliestLive(this.wheels[level][slot]);
+               if (earliest != Long.MAX_VALUE)
+               {
+                  return earliest;
+               }
+            }
+         }
+      }
+
+      return earliestLive(this.overflow);
+   }
+
+   public int size()
+   {
+      return this.stored - this.cancelledCount;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size() == 0;
+   }
+
+   /*
+      The level an event lives on is the lowest one whose rotation contains
+      both the cursor and the event time, i.e. the first level above which
+      the two times agree.
+   */
+   private int levelFor(long time)
+   {
+      int level = 0;
+      while (level < WHEEL_LEVELS &&
+              (time >> (WHEEL_BITS * (level + 1))) !=
+                      (this.cursor >> (WHEEL_BITS * (level + 1))))
+      {
+         level++;
+      }
+      return level;
+   }
+
+   private ArrayDeque<Event> slotFor(int level, long time)
+   {
+      return this.wheels[level][(int)(time >> (WHEEL_BITS * level)) & WHEEL_MASK];
+   }
+
+   private static long earliestLive(ArrayDeque<Event> events)
+   {
+      long earliest = Long.MAX_VALUE;
+      for (Event event : events)
+      {
+         if (!event.isCancelled())
+         {
+            earliest = Math.min(earliest, event.getTime());
+         }
+      }
+      return earliest;
+   }
+
+   private void place(Event event)
+   {
+      long time = event.getTime();
+
+      if (time <= this.cursor)
+      {
+         this.ready.add(event);
+         return;
+      }
+
+      int level = this.levelFor(time);
+      if (level < WHEEL_LEVELS)
+      {
+         this.slotFor(level, time).add(event);
+         this.levelCounts[level]++;
+      }
+      else
+      {
+         this.overflow.add(event);
+      }
+   }
+
+   private void advance(long target)
+   {
+      while (this.ready.isEmpty() && this.cursor < target)
+      {
+         int emptyLevels = 0;
+         while (emptyLevels < WHEEL_LEVELS &&
+                 this.levelCounts[emptyLevels] == 0)
+         {
+            emptyLevels++;
+         }
+
+         if (emptyLevels == WHEEL_LEVELS && this.overflow.isEmpty())
+         {
+            this.cursor = target;
+            return;
+         }
+
+         if (emptyLevels > 0)
+         {
+            // nothing can expire before the next boundary of the first
+            // non-empty level, so jump to the tick just before it
+            long skipTo = this.cursor |
+                    ((1L << (WHEEL_BITS * emptyLevels)) - 1);
+            if (skipTo >= target)
+            {
+               this.cursor = target;
+               return;
+            }
+            this.cursor = skipTo;
+         }
+
+         this.tick();
+      }
+   }
+
+   private void tick()
+   {
+      this.cursor++;
+
+      int crossed = 0;
+      while (crossed < WHEEL_LEVELS &&
+              (this.cursor & ((1L << (WHEEL_BITS * (crossed + 1))) - 1)) == 0)
+      {
+         crossed++;
+      }
+
+      if (crossed == WHEEL_LEVELS)
+      {
+         this.cascade(this.overflow);
+      }
+      for (int level = Math.min(crossed, WHEEL_LEVELS - 1); level > 0; level--)
+      {
+         ArrayDeque<Event> slot = this.slotFor(level, this.cursor);
+         this.levelCounts[level] -= slot.size();
+         this.cascade(slot);
+      }
+
+      ArrayDeque<Event> due = this.slotFor(0, this.cursor);
+      this.levelCounts[0] -= due.size();
+      this.ready.addAll(due);
+      due.clear();
+   }
+
+   private void cascade(ArrayDeque<Event> slot)
+   {
+      int count = slot.size();
+      for (int i = 0; i < count; i++)
+      {
+         Event event = slot.poll();
+
+         if (event.isCancelled())
+         {
+            this.stored--;
+            this.cancelledCount--;
+         }
+         else
+         {
+            this.place(event);
+         }
+      }
+   }
+
+   private void compact()
+   {
+      for (int level = 0; level < WHEEL_LEVELS; level++)
+      {
+         int count = 0;
+         for (ArrayDeque<Event> slot : this.wheels[level])
+         {
+            slot.removeIf(Event::isCancelled);
+            count += slot.size();
+         }
+         this.levelCounts[level] = count;
+      }
+      this.overflow.removeIf(Event::isCancelled);
+      this.ready.removeIf(Event::isCancelled);
+
+      this.stored -= this.cancelledCount;
+      this.cancelledCount = 0;
+   }
+}
@@ -50,9 +50,28 @@ final class Viewport
       return new Point(col - this.col, row - this.row);
    }
 
+   /*
+      Packed equivalents of the above for per-tile drawing loops, which
+      would otherwise allocate a Point for every tile of every frame.
+   */
+   public long viewportToWorldPacked(int col, int row)
+   {
+      return Point.pack(col + this.col, row + this.row);
+   }
+
+   public long worldToViewportPacked(int col, int row)
+   {
+      return Point.pack(col - this.col, row - this.row);
+   }
+
    public boolean contains(Point p)
    {
-      return p.y >= this.row && p.y < this.row + this.numRows &&
-              p.x >= this.col && p.x < this.col + this.numCols;
+      return this.contains(p.x, p.y);
+   }
+
+   public boolean contains(int x, int y)
+   {
+      return y >= this.row && y < this.row + this.numRows &&
+              x >= this.col && x < this.col + this.numCols;
    }
 }
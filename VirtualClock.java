@@ -0,0 +1,29 @@
+/*
+VirtualClock: simulated time that only moves when told to, so a headless run
+can jump straight from one event to the next instead of waiting for it
+ */
+
+final class VirtualClock
+   implements Clock
+{
+   private long time;
+
+   public VirtualClock(long startTime)
+   {
+      this.time = startTime;
+   }
+
+   public long currentTimeMillis()
+   {
+      return this.time;
+   }
+
+   public void advanceTo(long time)
+   {
+      if (time < this.time)
+      {
+         throw new IllegalArgumentException("virtual clock cannot go backwards");
+      }
+      this.time = time;
+   }
+}
@@ -1,6 +1,9 @@
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import processing.core.*;
 
 /*
@@ -39,15 +42,61 @@ public final class VirtualWorld
    public static final double FAST_SCALE = 0.5;
    public static final double FASTER_SCALE = 0.25;
    public static final double FASTEST_SCALE = 0.10;
+   public static final String WHEEL_FLAG = "-wheel";
+   public static final String HEADLESS_FLAG = "-headless";
+   public static final int HEADLESS_DEFAULT_SECONDS = 3600;
+   public static final String REGIONS_FLAG = "-regions";
+   public static final String SEED_FLAG = "-seed";
+   public static final String ENTITY_STORE_FLAG = "-entitystore";
+   public static final String WORLD_FLAG = "-world";
+   public static final String CONVERT_FLAG = "-convert";
+   public static final String PARALLEL_LOAD_FLAG = "-parallelload";
+   public static final String PARALLEL_IMAGES_FLAG = "-parallelimages";
+   public static final String ATLAS_FLAG = "-atlas";
+   public static final String TIMED_ANIMATION_FLAG = "-timedanimation";
+   public static final String INCREMENTAL_FLAG = "-incremental";
+   public static final String BACKGROUND_CACHE_FLAG = "-backgroundcache";
+   public static final String SIMULATION_THREAD_FLAG = "-simthread";
+   public static final String IMAGE_BUDGET_FLAG = "-imagebudget";
+   public static final String IMAGE_CACHE_FLAG = "-imagecache";
+   public static final String CHECKPOINT_FLAG = "-checkpoint";
+   public static final int CHECKPOINT_DEFAULT_SECONDS = 5;
+   public static final String RESTORE_FLAG = "-restore";
+   public static final String JOURNAL_FLAG = "-journal";
 
    private static double timeScale = 1.0;
+   private static boolean useTimingWheel = false;
+   private static long headlessMillis = -1;
+   private static int regionsPerSide = 1;
+   private static boolean useEntityStore = false;
+   private static String worldFileName = LOAD_FILE_NAME;
+   private static String snapshotFileName = null;
+   private static int loadThreads = 1;
+   private static int imageThreads = 1;
+   private static boolean useAtlas = false;
+   private static boolean timedAnimation = false;
+   private static boolean incrementalDraw = false;
+   private static boolean cachedBackground = false;
+   private static boolean simulationThread = false;
+   private static long imageBudgetBytes = Long.MAX_VALUE;
+   private static String imageCacheDir = null;
+   private static String checkpointFileName = null;
+   private static long checkpointMillis = CHECKPOINT_DEFAULT_SECONDS * 1000;
+   private static String restoreFileName = null;
+   private static String journalFileName = null;
+   private static long journalFlushMillis = WorldJournal.DEFAULT_FLUSH_MILLIS;
 
    private ImageStore imageStore;
    private WorldModel world;
    private WorldView view;
    private EventScheduler scheduler;
+   private WorldCheckpoint checkpoint;
+   private WorldJournal journal;
+   /* runs the scheduler instead of draw when started with -simthread */
+   private SimulationThread simulation;
 
    private long next_time;
+   private long next_checkpoint_time;
 
    public void settings()
    {
@@ -61,22 +110,50 @@ public final class VirtualWorld
    {
       this.imageStore = new ImageStore(
          createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
+      this.imageStore.setBudget(imageBudgetBytes);
+      this.imageStore.setFileCache(createImageFileCache());
       this.world = new WorldModel(WORLD_ROWS, WORLD_COLS,
-         createDefaultBackground(imageStore));
+         createDefaultBackground(imageStore), useEntityStore);
+      this.world.addListener(imageStore);
       this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world,
          TILE_WIDTH, TILE_HEIGHT);
-      this.scheduler = new EventScheduler(timeScale);
+      this.view.setIncremental(incrementalDraw);
+      this.view.setCachedBackground(cachedBackground);
+      this.scheduler = createScheduler(world, new WallClock());
 
       loadImages(IMAGE_LIST_FILE_NAME, imageStore, this);
-      loadWorld(world, LOAD_FILE_NAME, imageStore);
-
-      scheduleActions(world, scheduler, imageStore);
+      if (useAtlas)
+      {
+         long start = System.currentTimeMillis();
+         TextureAtlas atlas = imageStore.buildAtlas(TextureAtlas.DEFAULT_PAGE_SIZE);
+         view.setAtlas(atlas);
+         System.out.println(String.format("packed %d frames into %d atlas pages in %d ms",
+            atlas.getFrameCount(), atlas.getPages().size(),
+            System.currentTimeMillis() - start));
+      }
+      startWorld(world, scheduler, imageStore);
+      this.journal = createJournal(world, scheduler);
+      this.checkpoint = createCheckpoint(world, scheduler, journal);
+      if (simulationThread)
+      {
+         this.simulation = new SimulationThread(world, scheduler,
+            TIMER_ACTION_PERIOD, checkpoint, checkpointMillis);
+         this.simulation.start();
+      }
 
       next_time = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
+      next_checkpoint_time = System.currentTimeMillis() + checkpointMillis;
    }
 
    public void draw()
    {
+      if (simulation != null)
+      {
+         view.drawViewport(simulation.getSnapshot(),
+            scheduler.getClock().currentTimeMillis());
+         return;
+      }
+
       long time = System.currentTimeMillis();
       if (time >= next_time)
       {
@@ -84,7 +161,52 @@ public final class VirtualWorld
          next_time = time + TIMER_ACTION_PERIOD;
       }
 
-      view.drawViewport();
+      if (checkpoint != null && time >= next_checkpoint_time)
+      {
+         checkpoint.checkpoint();
+         next_checkpoint_time = time + checkpointMillis;
+      }
+
+      view.drawViewport(scheduler.getClock().currentTimeMillis());
+   }
+
+   public void dispose()
+   {
+      boolean failed = false;
+      if (simulation != null)
+      {
+         simulation.shutdown();
+         failed = simulation.getFailure() != null;
+      }
+      if (checkpoint != null)
+      {
+         /* a failed tick may have left the world half-updated */
+         if (!failed)
+         {
+            checkpoint.checkpoint();
+         }
+         checkpoint.close();
+      }
+      if (journal != null)
+      {
+         journal.close();
+      }
+      ImageCache cache = imageStore.getCache();
+      if (cache != null)
+      {
+         System.out.println(String.format(
+            "image cache: %d hits, %d misses, %d evictions, %d KB in %d images",
+            cache.getHits(), cache.getMisses(), cache.getEvictions(),
+            cache.getBytes() / 1024, cache.getEntryCount()));
+      }
+      ImageFileCache files = imageStore.getFileCache();
+      if (files != null)
+      {
+         System.out.println(String.format(
+            "image file cache: %d read, %d written, %d stale",
+            files.getReads(), files.getWrites(), files.getStale()));
+      }
+      super.dispose();
    }
 
    public void keyPressed()
@@ -113,6 +235,23 @@ public final class VirtualWorld
       }
    }
 
+   private static EventScheduler createScheduler(WorldModel world, Clock clock)
+   {
+      EventQueue eventQueue = useTimingWheel
+         ? new TimingWheelEventQueue(clock.currentTimeMillis())
+         : new HeapEventQueue();
+      EventScheduler scheduler = new EventScheduler(timeScale, eventQueue, clock);
+      scheduler.setTimedAnimation(timedAnimation);
+
+      if (regionsPerSide > 1)
+      {
+         scheduler.setTickExecutor(new RegionTickExecutor(world.getNumRows(),
+            world.getNumCols(), regionsPerSide, regionsPerSide,
+            world.getRegionAlignment()));
+      }
+      return scheduler;
+   }
+
    private static Background createDefaultBackground(ImageStore imageStore)
    {
       return new Background(DEFAULT_IMAGE_NAME,
@@ -134,31 +273,160 @@ public final class VirtualWorld
    private static void loadImages(String filename, ImageStore imageStore,
       PApplet screen)
    {
-      try
+      long start = System.currentTimeMillis();
+      try (InputStream in = new FileInputStream(filename))
       {
-         Scanner in = new Scanner(new File(filename));
-         imageStore.loadImages(in, screen);
+         int count = imageStore.loadImages(in, screen, imageThreads);
+         System.out.println(String.format("listed %d images from %s in %d ms, %s",
+            count, filename, System.currentTimeMillis() - start,
+            imageThreads > 1 ? "decoded on " + imageThreads + " threads"
+               : "decoded on first use"));
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
          System.err.println(e.getMessage());
       }
    }
 
+   /*
+      Loads either a world.sav text file or a binary WorldSnapshot, telling
+      them apart by the snapshot's magic number.
+   */
    private static void loadWorld(WorldModel world, String filename,
       ImageStore imageStore)
    {
       try
       {
-         Scanner in = new Scanner(new File(filename));
-         Functions.load(in, world, imageStore);
+         Path path = Paths.get(filename);
+         if (WorldSnapshot.isSnapshot(path))
+         {
+            WorldSnapshot.load(path, world, imageStore);
+         }
+         else if (loadThreads > 1)
+         {
+            ParallelWorldLoader.load(path, world, imageStore, loadThreads);
+         }
+         else
+         {
+            try (InputStream in = new FileInputStream(filename))
+            {
+               Functions.load(in, world, imageStore);
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   private static void convertWorld(String filename, String snapshotName)
+   {
+      try (InputStream in = new FileInputStream(filename))
+      {
+         long start = System.currentTimeMillis();
+         WorldSnapshot.convert(in, Paths.get(snapshotName), WORLD_ROWS,
+            WORLD_COLS);
+         System.out.println(String.format("wrote %s in %d ms", snapshotName,
+            System.currentTimeMillis() - start));
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+      Either restores a checkpoint, pending events included and replaying
+      the journal after it when there is one, or loads the world file and
+      schedules every entity's first actions.
+   */
+   private static void startWorld(WorldModel world, EventScheduler scheduler,
+      ImageStore imageStore)
+   {
+      if (restoreFileName != null)
+      {
+         try
+         {
+            if (journalFileName != null
+               && new File(journalFileName).length() > 0)
+            {
+               WorldJournal.recover(Paths.get(restoreFileName),
+                  Paths.get(journalFileName), world, scheduler, imageStore);
+            }
+            else
+            {
+               WorldCheckpoint.restore(Paths.get(restoreFileName), world,
+                  scheduler, imageStore);
+            }
+            return;
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+         }
+      }
+
+      loadWorld(world, worldFileName, imageStore);
+      scheduleActions(world, scheduler, imageStore);
+   }
+
+   private static ImageFileCache createImageFileCache()
+   {
+      if (imageCacheDir == null)
+      {
+         return null;
+      }
+
+      try
+      {
+         return new ImageFileCache(Paths.get(imageCacheDir));
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
          System.err.println(e.getMessage());
+         return null;
       }
    }
 
+   /* a journal needs checkpoints to start from, so it is only kept with one */
+   private static WorldJournal createJournal(WorldModel world,
+      EventScheduler scheduler)
+   {
+      if (journalFileName == null || checkpointFileName == null)
+      {
+         return null;
+      }
+
+      try
+      {
+         WorldJournal journal = new WorldJournal(Paths.get(journalFileName),
+            WorldJournal.DEFAULT_CAPACITY, journalFlushMillis);
+         journal.attach(world, scheduler);
+         return journal;
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return null;
+      }
+   }
+
+   private static WorldCheckpoint createCheckpoint(WorldModel world,
+      EventScheduler scheduler, WorldJournal journal)
+   {
+      if (checkpointFileName == null)
+      {
+         return null;
+      }
+
+      WorldCheckpoint checkpoint = new WorldCheckpoint(world, scheduler,
+         Paths.get(checkpointFileName));
+      checkpoint.setJournal(journal);
+      checkpoint.save();
+      return checkpoint;
+   }
+
    private static void scheduleActions(WorldModel world,
       EventScheduler scheduler, ImageStore imageStore)
    {
@@ -170,11 +438,64 @@ public final class VirtualWorld
       }
    }
 
+   /*
+      Runs the world without a window on a virtual clock, as fast as the
+      events can be executed, and reports how long that took.
+   */
+   private static void runHeadless(long duration)
+   {
+      ImageStore imageStore = new ImageStore(
+         createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
+      WorldModel world = new WorldModel(WORLD_ROWS, WORLD_COLS,
+         createDefaultBackground(imageStore), useEntityStore);
+      EventScheduler scheduler = createScheduler(world, new VirtualClock(0));
+
+      long loadStart = System.currentTimeMillis();
+      startWorld(world, scheduler, imageStore);
+      System.out.println(String.format("loaded %s in %d ms",
+         restoreFileName != null ? restoreFileName : worldFileName,
+         System.currentTimeMillis() - loadStart));
+      WorldJournal journal = createJournal(world, scheduler);
+      WorldCheckpoint checkpoint = createCheckpoint(world, scheduler, journal);
+
+      long start = System.currentTimeMillis();
+      long executed = 0;
+      if (checkpoint == null)
+      {
+         executed = scheduler.fastForward(duration);
+      }
+      else
+      {
+         for (long done = 0; done < duration; done += checkpointMillis)
+         {
+            executed += scheduler.fastForward(
+               Math.min(checkpointMillis, duration - done));
+            checkpoint.checkpoint();
+         }
+         checkpoint.close();
+      }
+      if (journal != null)
+      {
+         journal.close();
+      }
+      long elapsed = System.currentTimeMillis() - start;
+
+      System.out.println(String.format(
+         "simulated %d ms in %d ms: %d events executed, %d pending, %d entities",
+         duration, elapsed, executed, scheduler.getQueueSize(),
+         world.getEntities().size()));
+      for (EntityKind kind : EntityKind.values())
+      {
+         System.out.println(String.format("  %-14s %d", kind,
+            world.countEntities(kind)));
+      }
+   }
+
    private static void parseCommandLine(String [] args)
    {
-      for (String arg : args)
+      for (int i = 0; i < args.length; i++)
       {
-         switch (arg)
+         switch (args[i])
          {
             case FAST_FLAG:
                timeScale = Math.min(FAST_SCALE, timeScale);
@@ -185,6 +506,112 @@ public final class VirtualWorld
             case FASTEST_FLAG:
                timeScale = Math.min(FASTEST_SCALE, timeScale);
                break;
+            case WHEEL_FLAG:
+               useTimingWheel = true;
+               break;
+            case HEADLESS_FLAG:
+               long seconds = HEADLESS_DEFAULT_SECONDS;
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  seconds = Long.parseLong(args[++i]);
+               }
+               headlessMillis = seconds * 1000;
+               break;
+            case REGIONS_FLAG:
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  regionsPerSide = Math.max(1, Integer.parseInt(args[++i]));
+               }
+               break;
+            case ENTITY_STORE_FLAG:
+               useEntityStore = true;
+               break;
+            case WORLD_FLAG:
+               if (i + 1 < args.length)
+               {
+                  worldFileName = args[++i];
+               }
+               break;
+            case CONVERT_FLAG:
+               if (i + 1 < args.length)
+               {
+                  snapshotFileName = args[++i];
+               }
+               break;
+            case PARALLEL_LOAD_FLAG:
+               loadThreads = Runtime.getRuntime().availableProcessors();
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  loadThreads = Math.max(1, Integer.parseInt(args[++i]));
+               }
+               break;
+            case PARALLEL_IMAGES_FLAG:
+               imageThreads = Runtime.getRuntime().availableProcessors();
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  imageThreads = Math.max(1, Integer.parseInt(args[++i]));
+               }
+               break;
+            case IMAGE_BUDGET_FLAG:
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  imageBudgetBytes = Long.parseLong(args[++i]) << 20;
+               }
+               break;
+            case IMAGE_CACHE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  imageCacheDir = args[++i];
+               }
+               break;
+            case ATLAS_FLAG:
+               useAtlas = true;
+               break;
+            case TIMED_ANIMATION_FLAG:
+               timedAnimation = true;
+               break;
+            case INCREMENTAL_FLAG:
+               incrementalDraw = true;
+               break;
+            case BACKGROUND_CACHE_FLAG:
+               cachedBackground = true;
+               break;
+            case SIMULATION_THREAD_FLAG:
+               simulationThread = true;
+               break;
+            case CHECKPOINT_FLAG:
+               if (i + 1 < args.length)
+               {
+                  checkpointFileName = args[++i];
+               }
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  checkpointMillis = Math.max(1,
+                     Long.parseLong(args[++i])) * 1000;
+               }
+               break;
+            case JOURNAL_FLAG:
+               if (i + 1 < args.length)
+               {
+                  journalFileName = args[++i];
+               }
+               if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+               {
+                  journalFlushMillis = Long.parseLong(args[++i]);
+               }
+               break;
+            case RESTORE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  restoreFileName = args[++i];
+               }
+               break;
+            case SEED_FLAG:
+               if (i + 1 < args.length && args[i + 1].matches("-?\\d+"))
+               {
+                  Functions.rand.setSeed(Long.parseLong(args[++i]));
+               }
+               break;
          }
       }
    }
@@ -192,6 +619,17 @@ public final class VirtualWorld
    public static void main(String [] args)
    {
       parseCommandLine(args);
-      PApplet.main(VirtualWorld.class);
+      if (snapshotFileName != null)
+      {
+         convertWorld(worldFileName, snapshotFileName);
+      }
+      else if (headlessMillis >= 0)
+      {
+         runHeadless(headlessMillis);
+      }
+      else
+      {
+         PApplet.main(VirtualWorld.class);
+      }
    }
 }
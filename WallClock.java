@@ -0,0 +1,12 @@
+/*
+WallClock: real time, used by the Processing sketch
+ */
+
+final class WallClock
+   implements Clock
+{
+   public long currentTimeMillis()
+   {
+      return System.currentTimeMillis();
+   }
+}
@@ -0,0 +1,723 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+WorldCheckpoint: saves a running world, including its pending events, to a
+file that grows by one section per checkpoint
+The first section is a full save: the background palette and its cells as
+runs of tiles, then every entity with its pending events. Later checkpoints
+only append what changed since the one before: background cells that were
+set, and entities that were added, moved, removed or had events run or
+scheduled, each written whole with its pending events.
+A checkpoint only copies those records into memory on the calling thread,
+which must be the one running ticks, between ticks; the file is written on a
+background thread. A full save takes a copy-on-write snapshot of the
+background's chunks there and leaves encoding its runs to that thread too,
+so its pause depends on the entities and chunk count, not the map's cells.
+Once the appended sections outgrow the full save, the next checkpoint starts
+a new file with a fresh full save.
+Reading a checkpoint back keeps its background in a TileGrid and restoring
+sets only the cells that grid holds, so neither costs the whole map.
+Entities are identified by the sequence number their world gave them, and
+event times are saved as absolute times on the scheduler's clock, so a
+restore can schedule each event the same distance after the last section.
+ */
+
+final class WorldCheckpoint
+   implements WorldListener, SchedulerListener
+{
+   public static final int MAGIC = 0x5657434b; /* "VWCK" */
+   public static final short VERSION = 2;
+   /* version 1 full sections held one short per cell rather than runs */
+   private static final short FIRST_VERSION = 1;
+
+   private static final byte FULL = 1;
+   private static final byte DELTA = 2;
+   /* length, type and clock time at the start of every section */
+   private static final int SECTION_HEADER_BYTES = Integer.BYTES + 1 + Long.BYTES;
+
+   private final WorldModel world;
+   private final EventScheduler scheduler;
+   private final Path file;
+   private final ExecutorService writer;
+
+   /* guarded by this: listener calls can come from region threads */
+   private final Set<Entity> dirtyEntities;
+   private final Set<Long> removedSequences;
+   private final Set<Long> dirtyCells;
+
+   private boolean saved;
+   /* set by the writer once it has encoded the full save */
+   private volatile long fullBytes;
+   private long deltaBytes;
+   private int sections;
+   private WorldJournal journal;
+
+   public WorldCheckpoint(WorldModel world, EventScheduler scheduler, Path file)
+   {
+      this.world = world;
+      this.scheduler = scheduler;
+      this.file = file;
+      this.writer = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "checkpoint-writer");
+         thread.setDaemon(true);
+         return thread;
+      });
+      this.dirtyEntities = new HashSet<>();
+      this.removedSequences = new HashSet<>();
+      this.dirtyCells = new HashSet<>();
+
+      world.addListener(this);
+      scheduler.addListener(this);
+   }
+
+   /*
+      Has each checkpoint marked in the journal, so a restore knows which
+      journal records came after the last section that reached the file.
+   */
+   public void setJournal(WorldJournal journal)
+   {
+      this.journal = journal;
+   }
+
+   /*
+      Writes a new file holding one full section.
+   */
+   public void save()
+   {
+      FullSave full;
+      synchronized (this)
+      {
+         full = this.captureFull();
+         this.clearDirty();
+      }
+      this.saved = true;
+      /* no compaction before the writer knows how big the full save is */
+      this.fullBytes = Long.MAX_VALUE;
+      this.deltaBytes = 0;
+      this.sections = 1;
+
+      Future<?> written = this.writer.submit(() -> this.writeFull(full));
+      if (this.journal != null)
+      {
+         this.journal.markCheckpoint(this.sections, written);
+      }
+   }
+
+   /*
+      Appends the changes since the last checkpoint, or does a full save if
+      there is none yet or the appended changes have outgrown it.
+   */
+   public void checkpoint()
+   {
+      if (!this.saved || this.deltaBytes > this.fullBytes)
+      {
+         this.save();
+         return;
+      }
+
+      byte[] section;
+      synchronized (this)
+      {
+         section = this.captureDelta();
+         this.clearDirty();
+      }
+      this.deltaBytes += section.length;
+      this.sections++;
+
+      this.writer.execute(() -> this.appendSection(section));
+      if (this.journal != null)
+      {
+         this.journal.markCheckpoint(this.sections, null);
+      }
+   }
+
+   /*
+      Stops tracking changes and waits for queued writes to reach the file.
+   */
+   public void close()
+   {
+      this.world.removeListener(this);
+      this.scheduler.removeListener(this);
+      this.writer.shutdown();
+      try
+      {
+         this.writer.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   public synchronized void entityAdded(Entity entity)
+   {
+      this.dirtyEntities.add(entity);
+   }
+
+   public synchronized void entityRemoved(Entity entity, long pos)
+   {
+      this.dirtyEntities.remove(entity);
+      this.removedSequences.add(entity.getSequence());
+   }
+
+   public synchronized void entityMoved(Entity entity, long from, long to)
+   {
+      this.dirtyEntities.add(entity);
+   }
+
+   public synchronized void backgroundChanged(int x, int y)
+   {
+      this.dirtyCells.add(Point.pack(x, y));
+   }
+
+   public synchronized void eventScheduled(Event event)
+   {
+      this.dirtyEntities.add(event.getEntity());
+   }
+
+   public synchronized void eventRemoved(Event event, boolean ran)
+   {
+      this.dirtyEntities.add(event.getEntity());
+   }
+
+   public void ticked(long time, long ranBefore)
+   {
+   }
+
+   private void clearDirty()
+   {
+      this.dirtyEntities.clear();
+      this.removedSequences.clear();
+      this.dirtyCells.clear();
+   }
+
+   private FullSave captureFull()
+   {
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         int count = 0;
+         for (Entity entity : this.world.getEntities())
+         {
+            this.writeEntity(out, entity);
+            count++;
+         }
+         out.flush();
+
+         return new FullSave(this.scheduler.getClock().currentTimeMillis(),
+                 this.world.getNumRows(), this.world.getNumCols(),
+                 this.world.snapshotBackground(), count, bytes.toByteArray());
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private byte[] captureDelta()
+   {
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = startSection(bytes, DELTA,
+                 this.scheduler.getClock().currentTimeMillis());
+
+         out.writeInt(this.dirtyCells.size());
+         for (long cell : this.dirtyCells)
+         {
+            Background background = this.world.backgroundAt(Point.x(cell),
+                    Point.y(cell));
+            out.writeLong(cell);
+            writeString(out, background == null ? "" : background.getId());
+         }
+
+         out.writeInt(this.removedSequences.size());
+         for (long sequence : this.removedSequences)
+         {
+            out.writeLong(sequence);
+         }
+
+         /* an entity can be dirtied after it left the world, e.g. by
+            unscheduling its events, so only live ones are written */
+         List<Entity> live = new ArrayList<>();
+         for (Entity entity : this.dirtyEntities)
+         {
+            if (this.world.occupantAt(entity.getPackedPosition()) == entity)
+            {
+               live.add(entity);
+            }
+         }
+         out.writeInt(live.size());
+         for (Entity entity : live)
+         {
+            this.writeEntity(out, entity);
+         }
+
+         return finishSection(bytes, out);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static DataOutputStream startSection(ByteArrayOutputStream bytes,
+      byte type, long time) throws IOException
+   {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0); /* patched by finishSection */
+      out.writeByte(type);
+      out.writeLong(time);
+      return out;
+   }
+
+   private static byte[] finishSection(ByteArrayOutputStream bytes,
+      DataOutputStream out) throws IOException
+   {
+      out.flush();
+      byte[] section = bytes.toByteArray();
+      ByteBuffer.wrap(section).putInt(0, section.length);
+      return section;
+   }
+
+   private void writeEntity(DataOutputStream out, Entity entity)
+      throws IOException
+   {
+      out.writeLong(entity.getSequence());
+      out.writeByte(entity.getKind().ordinal());
+      writeString(out, entity.getId());
+      out.writeLong(entity.getPackedPosition());
+      out.writeInt(entity.getResourceLimit());
+      out.writeInt(entity.peekResourceCount());
+      out.writeInt(entity.getActionPeriod());
+      out.writeInt(entity.isAnimated() ? entity.getAnimationPeriod() : 0);
+      out.writeInt(entity.getImageIndex());
+
+      List<Event> pending = this.scheduler.getPendingEvents(entity);
+      out.writeInt(pending.size());
+      for (Event event : pending)
+      {
+         out.writeByte(event.getAction().getKind().ordinal());
+         out.writeLong(event.getTime());
+         out.writeInt(event.getAction().getRepeatCount());
+      }
+   }
+
+   /*
+      Throws once the failure is reported, so a journal waiting on this
+      write knows the full save never reached the disk.
+   */
+   private void writeFull(FullSave full)
+   {
+      byte[] section;
+      try
+      {
+         section = full.encode();
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("checkpoint failed: %s",
+                 e.getMessage()));
+         throw new UncheckedIOException(e);
+      }
+      this.fullBytes = section.length;
+      this.writeNewFile(section);
+   }
+
+   private void writeNewFile(byte[] section)
+   {
+      Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+      try
+      {
+         try (OutputStream out = Files.newOutputStream(temp))
+         {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeShort(VERSION);
+            header.write(section);
+            header.flush();
+         }
+         Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("checkpoint failed: %s",
+                 e.getMessage()));
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private void appendSection(byte[] section)
+   {
+      try (OutputStream out = Files.newOutputStream(this.file,
+              StandardOpenOption.APPEND))
+      {
+         out.write(section);
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("checkpoint failed: %s",
+                 e.getMessage()));
+      }
+   }
+
+   /*
+      What a full section holds, as taken between ticks: the entity records
+      are already written, and the background is still a TileGrid snapshot.
+   */
+   private static final class FullSave
+   {
+      private final long time;
+      private final int numRows;
+      private final int numCols;
+      private final TileGrid.Snapshot background;
+      private final int entityCount;
+      private final byte[] entities;
+
+      FullSave(long time, int numRows, int numCols,
+         TileGrid.Snapshot background, int entityCount, byte[] entities)
+      {
+         this.time = time;
+         this.numRows = numRows;
+         this.numCols = numCols;
+         this.background = background;
+         this.entityCount = entityCount;
+         this.entities = entities;
+      }
+
+      byte[] encode() throws IOException
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = startSection(bytes, FULL, this.time);
+         out.writeInt(this.numRows);
+         out.writeInt(this.numCols);
+         this.background.writeRuns(out);
+         out.writeInt(this.entityCount);
+         out.write(this.entities);
+         return finishSection(bytes, out);
+      }
+   }
+
+   /*
+      Rebuilds a world and its pending events from a checkpoint file into an
+      empty WorldModel and EventScheduler. A section cut short by a crash
+      mid-write is ignored, so the world comes back as of the last complete
+      checkpoint.
+   */
+   public static void restore(Path file, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore) throws IOException
+   {
+      State.read(file).apply(world, scheduler, imageStore);
+   }
+
+   private static void writeString(DataOutputStream out, String value)
+      throws IOException
+   {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeShort(bytes.length);
+      out.write(bytes);
+   }
+
+   static String readString(ByteBuffer buffer)
+   {
+      byte[] bytes = new byte[buffer.getShort() & 0xffff];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /*
+      A checkpoint file read back into plain records, before anything is
+      put into a world; WorldJournal replays its records on top of this.
+   */
+   static final class State
+   {
+      /* null until a full section is read; its default tile means "left" */
+      private TileGrid background;
+      private final Map<Long, SavedEntity> entities = new TreeMap<>();
+      private long savedTime;
+      private int sections;
+
+      static State read(Path file) throws IOException
+      {
+         ByteBuffer buffer;
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+         {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         }
+
+         short version = 0;
+         if (buffer.remaining() >= Integer.BYTES + Short.BYTES
+                 && buffer.getInt() == MAGIC)
+         {
+            version = buffer.getShort();
+         }
+         if (version < FIRST_VERSION || version > VERSION)
+         {
+            throw new IOException(String.format("%s is not a version %d checkpoint",
+                    file, VERSION));
+         }
+
+         State state = new State();
+         while (buffer.remaining() >= SECTION_HEADER_BYTES)
+         {
+            int length = buffer.getInt(buffer.position());
+            if (length < SECTION_HEADER_BYTES || length > buffer.remaining())
+            {
+               break;
+            }
+            int end = buffer.position() + length;
+            buffer.getInt();
+            byte type = buffer.get();
+            state.savedTime = buffer.getLong();
+
+            if (type == FULL)
+            {
+               int numRows = buffer.getInt();
+               int numCols = buffer.getInt();
+               Background[] tiles = new Background[buffer.getInt()];
+               for (int i = 0; i < tiles.length; i++)
+               {
+                  tiles[i] = savedTile(readString(buffer));
+               }
+               state.background = new TileGrid(numRows, numCols, null);
+               if (version == FIRST_VERSION)
+               {
+                  state.background.readCells(buffer, numRows, numCols, tiles,
+                          cell -> {});
+               }
+               else
+               {
+                  state.background.readRuns(buffer, numRows, numCols, tiles,
+                          cell -> {});
+               }
+
+               state.entities.clear();
+               state.sections = 0;
+            }
+            else
+            {
+               int cells = buffer.getInt();
+               for (int i = 0; i < cells; i++)
+               {
+                  long cell = buffer.getLong();
+                  state.setBackground(cell, readString(buffer));
+               }
+
+               int removed = buffer.getInt();
+               for (int i = 0; i < removed; i++)
+               {
+                  state.entities.remove(buffer.getLong());
+               }
+            }
+
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++)
+            {
+               state.putEntity(new SavedEntity(buffer));
+            }
+
+            buffer.position(end);
+            state.sections++;
+         }
+
+         return state;
+      }
+
+      /* how many complete sections the file held; a journal marks each */
+      int getSections()
+      {
+         return this.sections;
+      }
+
+      long getSavedTime()
+      {
+         return this.savedTime;
+      }
+
+      void setSavedTime(long savedTime)
+      {
+         this.savedTime = savedTime;
+      }
+
+      SavedEntity getEntity(long sequence)
+      {
+         return this.entities.get(sequence);
+      }
+
+      void putEntity(SavedEntity entity)
+      {
+         this.entities.put(entity.sequence, entity);
+      }
+
+      void removeEntity(long sequence)
+      {
+         this.entities.remove(sequence);
+      }
+
+      /* drops saved events due before time, as they have run since */
+      void dropEventsBefore(long time)
+      {
+         for (SavedEntity entity : this.entities.values())
+         {
+            entity.events.removeIf(event -> event.time < time);
+         }
+      }
+
+      void setBackground(long cell, String id)
+      {
+         int x = Point.x(cell);
+         int y = Point.y(cell);
+         if (this.background != null && x >= 0 && y >= 0
+                 && x < this.background.getNumCols()
+                 && y < this.background.getNumRows())
+         {
+            this.background.set(x, y, savedTile(id));
+         }
+      }
+
+      /* saved tiles carry only their ids; apply finds the world's images */
+      private static Background savedTile(String id)
+      {
+         return new Background(id, null);
+      }
+
+      /*
+         Puts the saved world into an empty WorldModel and EventScheduler,
+         shifting every event so it is as far from the scheduler's current
+         time as it was from the time the state was saved.
+      */
+      void apply(WorldModel world, EventScheduler scheduler,
+         ImageStore imageStore)
+      {
+         if (this.background != null)
+         {
+            this.background.forEachSet((x, y, saved) -> world.setBackground(x, y,
+                    world.backgroundFor(saved.getId(), imageStore)));
+         }
+
+         long shift = scheduler.getClock().currentTimeMillis() - this.savedTime;
+         for (SavedEntity saved : this.entities.values())
+         {
+            saved.restore(world, scheduler, imageStore, shift);
+         }
+      }
+   }
+
+   /* one entity record as read back from a section or journal */
+   static final class SavedEntity
+   {
+      private static final EntityKind[] KINDS = EntityKind.values();
+      private static final ActionKind[] ACTIONS = ActionKind.values();
+
+      final long sequence;
+      final EntityKind kind;
+      final String id;
+      long position;
+      final int resourceLimit;
+      int resourceCount;
+      final int actionPeriod;
+      final int animationPeriod;
+      int imageIndex;
+      final List<SavedEvent> events;
+
+      SavedEntity(long sequence, EntityKind kind, String id, long position,
+         int resourceLimit, int resourceCount, int actionPeriod,
+         int animationPeriod, int imageIndex)
+      {
+         this.sequence = sequence;
+         this.kind = kind;
+         this.id = id;
+         this.position = position;
+         this.resourceLimit = resourceLimit;
+         this.resourceCount = resourceCount;
+         this.actionPeriod = actionPeriod;
+         this.animationPeriod = animationPeriod;
+         this.imageIndex = imageIndex;
+         this.events = new ArrayList<>();
+      }
+
+      SavedEntity(ByteBuffer buffer)
+      {
+         this(buffer.getLong(), KINDS[buffer.get()], readString(buffer),
+                 buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                 buffer.getInt(), buffer.getInt(), buffer.getInt());
+
+         int events = buffer.getInt();
+         for (int i = 0; i < events; i++)
+         {
+            ActionKind action = ACTIONS[buffer.get()];
+            long time = buffer.getLong();
+            this.events.add(new SavedEvent(action, time, buffer.getInt()));
+         }
+      }
+
+      void restore(WorldModel world, EventScheduler scheduler,
+         ImageStore imageStore, long timeShift)
+      {
+         Entity entity;
+         try
+         {
+            entity = world.loadEntity(this.kind, this.id,
+                    Point.unpack(this.position), this.resourceLimit,
+                    this.actionPeriod, this.animationPeriod, imageStore);
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(String.format("issue restoring %s: %s",
+                    this.id, e.getMessage()));
+            return;
+         }
+         if (entity == null)
+         {
+            return;
+         }
+         entity.restoreState(this.imageIndex, this.resourceCount);
+
+         for (SavedEvent event : this.events)
+         {
+            Action action = event.kind == ActionKind.ACTIVITY
+                    ? entity.createActivityAction(world, imageStore)
+                    : entity.createAnimationAction(event.repeatCount);
+            scheduler.scheduleEventAt(entity, action, event.time + timeShift);
+         }
+         scheduler.resumeAnimation(entity);
+      }
+   }
+
+   static final class SavedEvent
+   {
+      final ActionKind kind;
+      final long time;
+      final int repeatCount;
+
+      SavedEvent(ActionKind kind, long time, int repeatCount)
+      {
+         this.kind = kind;
+         this.time = time;
+         this.repeatCount = repeatCount;
+      }
+   }
+}
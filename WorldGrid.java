@@ -0,0 +1,11 @@
+/*
+WorldGrid: one value per cell of the world, used by WorldModel for both the
+background and the occupancy layers
+ */
+
+interface WorldGrid<T>
+{
+   T get(int x, int y);
+
+   void set(int x, int y, T value);
+}
@@ -0,0 +1,726 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+WorldJournal: an append-only log of every change to a running world, so a
+crashed simulation can be rebuilt from its last checkpoint plus the journal
+Entity adds, removes and moves, background changes, scheduled and
+unscheduled events, and tick times are recorded as they happen. Events that
+simply ran are not: a tick record says which time every event due before has
+run by, so replay drops those. The recording side claims a slot of a bounded
+ring with one atomic increment, copies a few longs into it and publishes it;
+no lock is taken. A writer thread drains the ring in batches once per flush
+interval, or sooner once a few thousand records are waiting, encodes the
+records and forces them to disk (group commit). When the ring is full the
+recording thread waits for the writer rather than dropping records.
+Every WorldCheckpoint section is marked in the journal. A full save starts
+the journal over, but only after the save itself has reached the disk, so
+the records since the last complete checkpoint section are always there.
+Replay stops at the last tick record, leaving out a tick cut short.
+ */
+
+final class WorldJournal
+   implements WorldListener, SchedulerListener
+{
+   public static final int MAGIC = 0x56574a4e; /* "VWJN" */
+   public static final short VERSION = 1;
+   public static final int DEFAULT_CAPACITY = 1 << 16;
+   public static final long DEFAULT_FLUSH_MILLIS = 50;
+
+   private static final byte ADD = 1;
+   private static final byte REMOVE = 2;
+   private static final byte MOVE = 3;
+   private static final byte SCHEDULE = 4;
+   private static final byte UNSCHEDULE = 5;
+   private static final byte BACKGROUND = 6;
+   /* journals from before TICKED recorded every event that ran; still read */
+   private static final byte TICK = 7;
+   private static final byte MARK = 8;
+   private static final byte TICKED = 9;
+
+   private static final int BATCH_BYTES = 1 << 20;
+   /* enough for any one encoded record, ids included */
+   private static final int MAX_RECORD_BYTES = 1 << 17;
+   private static final long FULL_WAIT_NANOS = 100_000;
+   private static final int WAKE_RECORDS = 1 << 12;
+
+   private final FileChannel channel;
+   private final long flushMillis;
+   private final Thread writer;
+
+   /* the ring: record n goes in slot n & mask, and published holds n + 1
+      for that slot once the record is filled in; the writer swaps in
+      -(n + 1) for a tick record it takes, and 0 marks one being updated */
+   private final int mask;
+   private final byte[] types;
+   private final long[] fields;
+   private final Object[] refs;
+   private final AtomicLongArray published;
+   private final AtomicLong claimed;
+   /* records before this have been written out and their slots are free */
+   private volatile long head;
+   /* set while the writer is parked; cleared by whoever wakes it */
+   private final AtomicBoolean sleeping;
+   /* how many records make the writer drain before its interval is up */
+   private final int wakeRecords;
+   private volatile boolean closed;
+   /* the sequence of the last tick record; only the ticking thread uses it */
+   private long lastTick;
+   private WorldModel world;
+
+   public WorldJournal(Path file, int capacity, long flushMillis)
+      throws IOException
+   {
+      int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      this.mask = slots - 1;
+      this.types = new byte[slots];
+      this.fields = new long[slots * 4];
+      this.refs = new Object[slots];
+      this.published = new AtomicLongArray(slots);
+      this.claimed = new AtomicLong();
+      this.sleeping = new AtomicBoolean();
+      this.wakeRecords = Math.min(slots >> 1, WAKE_RECORDS);
+      this.lastTick = -1;
+      this.flushMillis = flushMillis;
+
+      /* an existing journal is kept until the first full checkpoint is
+         safely written, as it may be what the world was just recovered from */
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE);
+      if (this.channel.size() == 0)
+      {
+         this.writeHeader();
+      }
+      this.channel.position(this.channel.size());
+
+      this.writer = new Thread(this::drain, "journal-writer");
+      this.writer.setDaemon(true);
+      this.writer.start();
+   }
+
+   public void attach(WorldModel world, EventScheduler scheduler)
+   {
+      this.world = world;
+      world.addListener(this);
+      scheduler.addListener(this);
+   }
+
+   public void detach(WorldModel world, EventScheduler scheduler)
+   {
+      world.removeListener(this);
+      scheduler.removeListener(this);
+   }
+
+   /*
+      Writes out everything recorded so far, forces it to disk and stops
+      the writer thread.
+   */
+   public void close()
+   {
+      this.closed = true;
+      LockSupport.unpark(this.writer);
+      try
+      {
+         this.writer.join();
+         this.channel.close();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("journal failed: %s",
+                 e.getMessage()));
+      }
+   }
+
+   /*
+      Records that a checkpoint now has the given number of sections. For
+      a full save, written completes once that file is on disk; the journal
+      is restarted from this mark after that.
+   */
+   public void markCheckpoint(int sections, Future<?> written)
+   {
+      this.record(MARK, sections, 0, 0, 0, written);
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      this.record(ADD, entity.getSequence(), entity.getPackedPosition(),
+              pack(entity.peekResourceCount(), entity.getImageIndex()), 0,
+              entity);
+   }
+
+   public void entityRemoved(Entity entity, long pos)
+   {
+      this.record(REMOVE, entity.getSequence(), 0, 0, 0, null);
+   }
+
+   public void entityMoved(Entity entity, long from, long to)
+   {
+      this.record(MOVE, entity.getSequence(), to, 0, 0, null);
+   }
+
+   public void backgroundChanged(int x, int y)
+   {
+      Background background = this.world.backgroundAt(x, y);
+      this.record(BACKGROUND, Point.pack(x, y), 0, 0, 0,
+              background == null ? "" : background.getId());
+   }
+
+   /*
+      Scheduling follows every action an entity runs, so the entity's
+      frame and resource count ride along and the journal stays current on
+      state that does not go through WorldModel.
+   */
+   public void eventScheduled(Event event)
+   {
+      Action action = event.getAction();
+      Entity entity = event.getEntity();
+      this.record(SCHEDULE, entity.getSequence(), event.getTime(),
+              pack(action.getKind().ordinal(), action.getRepeatCount()),
+              pack(entity.getImageIndex(), entity.peekResourceCount()), null);
+   }
+
+   public void eventRemoved(Event event, boolean ran)
+   {
+      /* the next tick record covers events that ran */
+      if (ran)
+      {
+         return;
+      }
+      this.record(UNSCHEDULE, event.getEntity().getSequence(), event.getTime(),
+              event.getAction().getKind().ordinal(), 0, null);
+   }
+
+   public void ticked(long time, long ranBefore)
+   {
+      /* only the latest tick matters, so back-to-back ticks share a record
+         as long as the writer has not taken it */
+      long last = this.lastTick;
+      if (last >= 0 && this.claimed.get() == last + 1)
+      {
+         int slot = (int)last & this.mask;
+         if (this.published.compareAndSet(slot, last + 1, 0))
+         {
+            this.fields[slot * 4] = time;
+            this.fields[slot * 4 + 1] = ranBefore;
+            this.published.set(slot, last + 1);
+            return;
+         }
+      }
+      this.lastTick = this.record(TICKED, time, ranBefore, 0, 0, null);
+   }
+
+   /*
+      Called from any thread; returns the record's sequence number. An
+      interrupt does not stop a wait for room in the ring: the record is
+      still written and the interrupt stays set.
+   */
+   private long record(byte type, long a, long b, long c, long d,
+      Object ref)
+   {
+      long sequence = this.claimed.getAndIncrement();
+      while (sequence - this.head > this.mask)
+      {
+         LockSupport.parkNanos(FULL_WAIT_NANOS);
+      }
+
+      int slot = (int)sequence & this.mask;
+      this.types[slot] = type;
+      this.fields[slot * 4] = a;
+      this.fields[slot * 4 + 1] = b;
+      this.fields[slot * 4 + 2] = c;
+      this.fields[slot * 4 + 3] = d;
+      this.refs[slot] = ref;
+      this.published.set(slot, sequence + 1);
+
+      if (sequence - this.head >= this.wakeRecords && this.sleeping.get()
+              && this.sleeping.compareAndSet(true, false))
+      {
+         LockSupport.unpark(this.writer);
+      }
+      return sequence;
+   }
+
+   /* the end of the run of published records starting at from */
+   private long publishedFrom(long from)
+   {
+      long to = from;
+      while (this.published.get((int)to & this.mask) == to + 1)
+      {
+         to++;
+      }
+      return to;
+   }
+
+   /* the writer thread: drain, encode, write, and force once per interval */
+   private void drain()
+   {
+      ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+      long nextForce = System.currentTimeMillis() + this.flushMillis;
+      boolean dirty = false;
+      long from = 0;
+
+      while (true)
+      {
+         /* read before draining, so everything recorded before close is */
+         boolean closing = this.closed;
+         long wait = nextForce - System.currentTimeMillis();
+         if (!closing && wait > 0
+                 && this.publishedFrom(from) - from < this.wakeRecords)
+         {
+            /* a recorder publishes and then reads sleeping; this sets
+               sleeping and then looks again, so one of them sees the other */
+            this.sleeping.set(true);
+            if (this.publishedFrom(from) - from < this.wakeRecords
+                    && !this.closed)
+            {
+               LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+            }
+            this.sleeping.set(false);
+            if (Thread.interrupted())
+            {
+               this.closed = true;
+            }
+            continue;
+         }
+         long to = this.publishedFrom(from);
+
+         try
+         {
+            for (long i = from; i < to; i++)
+            {
+               if (batch.remaining() < MAX_RECORD_BYTES)
+               {
+                  this.write(batch);
+               }
+               int slot = (int)i & this.mask;
+               if (this.types[slot] == TICKED
+                       && !this.published.compareAndSet(slot, i + 1, -(i + 1)))
+               {
+                  /* being updated with a later tick; taken next time */
+                  to = i;
+                  break;
+               }
+               if (this.types[slot] == MARK && this.refs[slot] != null)
+               {
+                  this.write(batch);
+                  this.restartAfter((Future<?>)this.refs[slot]);
+               }
+               this.encode(batch, slot);
+               dirty = true;
+            }
+            this.write(batch);
+
+            if (dirty && (closing || System.currentTimeMillis() >= nextForce))
+            {
+               this.channel.force(false);
+               dirty = false;
+            }
+            if (System.currentTimeMillis() >= nextForce)
+            {
+               nextForce = System.currentTimeMillis() + this.flushMillis;
+            }
+         }
+         catch (IOException e)
+         {
+            System.err.println(String.format("journal failed: %s",
+                    e.getMessage()));
+            batch.clear();
+         }
+
+         for (long i = from; i < to; i++)
+         {
+            this.refs[(int)i & this.mask] = null;
+         }
+         this.head = to;
+
+         if (closing && to == from)
+         {
+            return;
+         }
+         from = to;
+      }
+   }
+
+   /*
+      Waits for a full checkpoint to reach the disk and empties the journal;
+      if the save failed the old records are kept, since the previous
+      checkpoint still needs them.
+   */
+   private void restartAfter(Future<?> written) throws IOException
+   {
+      try
+      {
+         written.get();
+      }
+      catch (ExecutionException e)
+      {
+         return;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return;
+      }
+      this.channel.truncate(0);
+      this.channel.position(0);
+      this.writeHeader();
+   }
+
+   private void writeHeader() throws IOException
+   {
+      ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Short.BYTES);
+      header.putInt(MAGIC).putShort(VERSION).flip();
+      while (header.hasRemaining())
+      {
+         this.channel.write(header);
+      }
+   }
+
+   private void write(ByteBuffer batch) throws IOException
+   {
+      batch.flip();
+      while (batch.hasRemaining())
+      {
+         this.channel.write(batch);
+      }
+      batch.clear();
+   }
+
+   private void encode(ByteBuffer out, int slot)
+   {
+      byte type = this.types[slot];
+      int base = slot * 4;
+      long a = this.fields[base];
+      long b = this.fields[base + 1];
+      long c = this.fields[base + 2];
+      long d = this.fields[base + 3];
+
+      out.put(type);
+      switch (type)
+      {
+         case ADD:
+            Entity entity = (Entity)this.refs[slot];
+            out.putLong(a);
+            out.put((byte)entity.getKind().ordinal());
+            putString(out, entity.getId());
+            out.putLong(b);
+            out.putInt(entity.getResourceLimit());
+            out.putInt(high(c));
+            out.putInt(entity.getActionPeriod());
+            out.putInt(entity.isAnimated() ? entity.getAnimationPeriod() : 0);
+            out.putInt(low(c));
+            break;
+         case REMOVE:
+            out.putLong(a);
+            break;
+         case MOVE:
+            out.putLong(a);
+            out.putLong(b);
+            break;
+         case SCHEDULE:
+            out.putLong(a);
+            out.putLong(b);
+            out.put((byte)high(c));
+            out.putInt(low(c));
+            out.putInt(high(d));
+            out.putInt(low(d));
+            break;
+         case UNSCHEDULE:
+            out.putLong(a);
+            out.putLong(b);
+            out.put((byte)c);
+            break;
+         case BACKGROUND:
+            out.putLong(a);
+            putString(out, (String)this.refs[slot]);
+            break;
+         case TICKED:
+            out.putLong(a);
+            out.putLong(b);
+            break;
+         case MARK:
+            out.putInt((int)a);
+            break;
+      }
+   }
+
+   /*
+      Replays a journal on top of a checkpoint read back by
+      WorldCheckpoint.State: only the records after the mark for the last
+      section the checkpoint file holds are applied, up to the last tick
+      record after it. Saved events due before that tick's ranBefore time
+      have run by then and are dropped.
+   */
+   static void replay(Path file, WorldCheckpoint.State state)
+      throws IOException
+   {
+      ByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+
+      if (buffer.remaining() < Integer.BYTES + Short.BYTES
+              || buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+      {
+         throw new IOException(String.format("%s is not a version %d journal",
+                 file, VERSION));
+      }
+
+      int start = findMark(buffer.duplicate(), state.getSections());
+      if (start < 0)
+      {
+         System.err.println(String.format(
+                 "%s has no mark for checkpoint section %d; not replayed",
+                 file, state.getSections()));
+         return;
+      }
+      buffer.position(start);
+      int end = findLastTick(buffer.duplicate());
+      if (end < 0)
+      {
+         return;
+      }
+      buffer.limit(end);
+
+      EntityKind[] kinds = EntityKind.values();
+      ActionKind[] actions = ActionKind.values();
+      long ranBefore = Long.MIN_VALUE;
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            byte type = buffer.get();
+            WorldCheckpoint.SavedEntity entity;
+            switch (type)
+            {
+               case ADD:
+                  long sequence = buffer.getLong();
+                  EntityKind kind = kinds[buffer.get()];
+                  String id = WorldCheckpoint.readString(buffer);
+                  state.putEntity(new WorldCheckpoint.SavedEntity(sequence,
+                          kind, id, buffer.getLong(), buffer.getInt(),
+                          buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                          buffer.getInt()));
+                  break;
+               case REMOVE:
+                  state.removeEntity(buffer.getLong());
+                  break;
+               case MOVE:
+                  entity = state.getEntity(buffer.getLong());
+                  long to = buffer.getLong();
+                  if (entity != null)
+                  {
+                     entity.position = to;
+                  }
+                  break;
+               case SCHEDULE:
+                  entity = state.getEntity(buffer.getLong());
+                  long time = buffer.getLong();
+                  ActionKind action = actions[buffer.get()];
+                  int repeatCount = buffer.getInt();
+                  int imageIndex = buffer.getInt();
+                  int resourceCount = buffer.getInt();
+                  if (entity != null)
+                  {
+                     entity.events.add(new WorldCheckpoint.SavedEvent(action,
+                             time, repeatCount));
+                     entity.imageIndex = imageIndex;
+                     entity.resourceCount = resourceCount;
+                  }
+                  break;
+               case UNSCHEDULE:
+                  entity = state.getEntity(buffer.getLong());
+                  long removedTime = buffer.getLong();
+                  ActionKind removedAction = actions[buffer.get()];
+                  if (entity != null)
+                  {
+                     removeEvent(entity, removedAction, removedTime);
+                  }
+                  break;
+               case BACKGROUND:
+                  long cell = buffer.getLong();
+                  state.setBackground(cell, WorldCheckpoint.readString(buffer));
+                  break;
+               case TICK:
+                  state.setSavedTime(buffer.getLong());
+                  break;
+               case TICKED:
+                  state.setSavedTime(buffer.getLong());
+                  ranBefore = buffer.getLong();
+                  break;
+               case MARK:
+                  buffer.getInt();
+                  break;
+               default:
+                  return;
+            }
+         }
+      }
+      catch (BufferUnderflowException e)
+      {
+         /* the last record was only partly written */
+      }
+      state.dropEventsBefore(ranBefore);
+   }
+
+   /*
+      Rebuilds a crashed world into an empty WorldModel and EventScheduler
+      from its checkpoint file and the journal written alongside it.
+   */
+   public static void recover(Path checkpoint, Path journal, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore) throws IOException
+   {
+      WorldCheckpoint.State state = WorldCheckpoint.State.read(checkpoint);
+      replay(journal, state);
+      state.apply(world, scheduler, imageStore);
+   }
+
+   private static void removeEvent(WorldCheckpoint.SavedEntity entity,
+      ActionKind action, long time)
+   {
+      Iterator<WorldCheckpoint.SavedEvent> events = entity.events.iterator();
+      while (events.hasNext())
+      {
+         WorldCheckpoint.SavedEvent event = events.next();
+         if (event.kind == action && event.time == time)
+         {
+            events.remove();
+            return;
+         }
+      }
+   }
+
+   /* the offset just past the last mark for the given section count */
+   private static int findMark(ByteBuffer buffer, int sections)
+   {
+      int found = -1;
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            byte type = buffer.get();
+            if (type == MARK)
+            {
+               if (buffer.getInt() == sections)
+               {
+                  found = buffer.position();
+               }
+            }
+            else if (!skipRecord(buffer, type))
+            {
+               return found;
+            }
+         }
+      }
+      catch (BufferUnderflowException | IllegalArgumentException e)
+      {
+         /* a torn final record */
+      }
+      return found;
+   }
+
+   /* the offset just past the last tick record, or -1 if there is none */
+   private static int findLastTick(ByteBuffer buffer)
+   {
+      int found = -1;
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            byte type = buffer.get();
+            if (!skipRecord(buffer, type))
+            {
+               return found;
+            }
+            if (type == TICK || type == TICKED)
+            {
+               found = buffer.position();
+            }
+         }
+      }
+      catch (BufferUnderflowException | IllegalArgumentException e)
+      {
+         /* a torn final record */
+      }
+      return found;
+   }
+
+   /* moves past the body of a record; false for an unknown type */
+   private static boolean skipRecord(ByteBuffer buffer, byte type)
+   {
+      switch (type)
+      {
+         case ADD:
+            buffer.position(buffer.position() + Long.BYTES + 1);
+            int idLength = buffer.getShort() & 0xffff;
+            buffer.position(buffer.position() + idLength + Long.BYTES
+                    + 5 * Integer.BYTES);
+            return true;
+         case BACKGROUND:
+            buffer.position(buffer.position() + Long.BYTES);
+            int tileLength = buffer.getShort() & 0xffff;
+            buffer.position(buffer.position() + tileLength);
+            return true;
+         case REMOVE:
+         case TICK:
+            buffer.position(buffer.position() + Long.BYTES);
+            return true;
+         case MOVE:
+         case TICKED:
+            buffer.position(buffer.position() + 2 * Long.BYTES);
+            return true;
+         case SCHEDULE:
+            buffer.position(buffer.position() + 2 * Long.BYTES + 1
+                    + 3 * Integer.BYTES);
+            return true;
+         case UNSCHEDULE:
+            buffer.position(buffer.position() + 2 * Long.BYTES + 1);
+            return true;
+         case MARK:
+            buffer.position(buffer.position() + Integer.BYTES);
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   private static long pack(int high, int low)
+   {
+      return ((long)high << 32) | (low & 0xffffffffL);
+   }
+
+   private static int high(long packed)
+   {
+      return (int)(packed >> 32);
+   }
+
+   private static int low(long packed)
+   {
+      return (int)packed;
+   }
+
+   private static void putString(ByteBuffer out, String value)
+   {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.putShort((short)bytes.length);
+      out.put(bytes);
+   }
+}
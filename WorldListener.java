@@ -0,0 +1,17 @@
+/*
+WorldListener: told about every change a WorldModel makes to its entities and
+background, for code that mirrors the world elsewhere (checkpoints, journals)
+During a region-parallel tick these can be called from several threads at
+once, so implementations must be thread-safe.
+ */
+
+interface WorldListener
+{
+   void entityAdded(Entity entity);
+
+   void entityRemoved(Entity entity, long pos);
+
+   void entityMoved(Entity entity, long from, long to);
+
+   void backgroundChanged(int x, int y);
+}
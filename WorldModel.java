@@ -1,6 +1,13 @@
 import processing.core.PImage;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /*
 WorldModel ideally keeps track of the actual size of our grid world and what is in that world
@@ -11,22 +18,51 @@ final class WorldModel
 {
    private final int numRows;
    private final int numCols;
-   private final Background background[][];
-   private final Entity occupancy[][];
+   private final TileGrid background;
+   private final WorldGrid<Entity> occupancy;
    private final Set<Entity> entities;
+   private final SpatialIndex spatialIndex;
+   private final Map<EntityKind, FlowField> flowFields;
+   private long nextSequence;
+   /* guards the entities set and spatial index when ticks run region by
+      region in parallel; the grid cells themselves are partitioned by
+      RegionTickExecutor, along chunk edges for a ChunkedGrid */
+   private final ReadWriteLock entitiesLock;
+   /* null unless the world was created with a structure-of-arrays store */
+   private final EntityStore entityStore;
+   private final List<WorldListener> listeners;
+
+   private static final long OFF_GRID = Point.pack(-1, -1);
+
+   /* the occupancy of maps with more cells than this is kept in sparse
+      chunks; the background is always a chunked TileGrid */
+   public static final int DENSE_GRID_MAX_CELLS = 1 << 20;
 
    public WorldModel(int numRows, int numCols, Background defaultBackground)
+   {
+      this(numRows, numCols, defaultBackground, false);
+   }
+
+   public WorldModel(int numRows, int numCols, Background defaultBackground,
+      boolean useEntityStore)
    {
       this.numRows = numRows;
       this.numCols = numCols;
-      this.background = new Background[numRows][numCols];
-      this.occupancy = new Entity[numRows][numCols];
-      this.entities = new HashSet<>();
-
-      for (int row = 0; row < numRows; row++)
+      if ((long)numRows * numCols > DENSE_GRID_MAX_CELLS)
       {
-         Arrays.fill(this.background[row], defaultBackground);
+         this.occupancy = new ChunkedGrid<>(numRows, numCols, null);
       }
+      else
+      {
+         this.occupancy = new DenseGrid<>(numRows, numCols, null);
+      }
+      this.background = new TileGrid(numRows, numCols, defaultBackground);
+      this.entities = new LinkedHashSet<>();
+      this.spatialIndex = new SpatialIndex(numRows, numCols);
+      this.flowFields = new EnumMap<>(EntityKind.class);
+      this.entitiesLock = new ReentrantReadWriteLock();
+      this.entityStore = useEntityStore ? new EntityStore() : null;
+      this.listeners = new CopyOnWriteArrayList<>();
    }
 
    public int getNumRows() {
@@ -37,32 +73,112 @@ final class WorldModel
       return numCols;
    }
 
+   /*
+      What the sides of regions in a parallel tick must be a multiple of,
+      so that no chunk of the occupancy grid is written by two regions.
+   */
+   public int getRegionAlignment()
+   {
+      return this.occupancy instanceof ChunkedGrid ? ChunkedGrid.CHUNK_SIZE : 1;
+   }
+
    public Set<Entity> getEntities() {
       return entities;
    }
 
-   private boolean withinBounds(Point pos)
+   public EntityStore getEntityStore() {
+      return entityStore;
+   }
+
+   public void addListener(WorldListener listener)
+   {
+      this.listeners.add(listener);
+   }
+
+   public void removeListener(WorldListener listener)
+   {
+      this.listeners.remove(listener);
+   }
+
+   public int countEntities(EntityKind kind)
+   {
+      this.entitiesLock.readLock().lock();
+      try
+      {
+         if (this.entityStore != null)
+         {
+            return this.entityStore.count(kind);
+         }
+
+         int count = 0;
+         for (Entity entity : this.entities)
+         {
+            if (entity.getKind() == kind)
+            {
+               count++;
+            }
+         }
+         return count;
+      }
+      finally
+      {
+         this.entitiesLock.readLock().unlock();
+      }
+   }
+
+   private boolean withinBounds(int x, int y)
    {
-      return pos.y >= 0 && pos.y < this.numRows &&
-              pos.x >= 0 && pos.x < this.numCols;
+      return y >= 0 && y < this.numRows &&
+              x >= 0 && x < this.numCols;
    }
 
-   private Entity getOccupancyCell(Point pos)
+   private boolean withinBounds(long pos)
    {
-      return this.occupancy[pos.y][pos.x];
+      return this.withinBounds(Point.x(pos), Point.y(pos));
    }
 
-   private Background getBackgroundCell(Point pos)
+   private Entity getOccupancyCell(long pos)
    {
-      return this.background[pos.y][pos.x];
+      return this.occupancy.get(Point.x(pos), Point.y(pos));
    }
 
    public boolean isOccupied(Point pos)
+   {
+      return this.isOccupied(pos.pack());
+   }
+
+   public boolean isOccupied(long pos)
    {
       return this.withinBounds(pos) &&
               this.getOccupancyCell(pos) != null;
    }
 
+   /*
+      Calls the visitor with every entity in the rectangle of cells starting
+      at (col, row), row by row; answered from the occupancy grid, so the
+      cost follows the area asked for rather than the population.
+   */
+   public void forEachEntityIn(int col, int row, int numCols, int numRows,
+      Consumer<Entity> visitor)
+   {
+      int left = Math.max(col, 0);
+      int right = Math.min(col + numCols, this.numCols);
+      int top = Math.max(row, 0);
+      int bottom = Math.min(row + numRows, this.numRows);
+
+      for (int y = top; y < bottom; y++)
+      {
+         for (int x = left; x < right; x++)
+         {
+            Entity entity = this.occupancy.get(x, y);
+            if (entity != null)
+            {
+               visitor.accept(entity);
+            }
+         }
+      }
+   }
+
    private static Entity createAtlantis(String id, Point position,
                                        List<PImage> images)
    {
@@ -72,25 +188,53 @@ final class WorldModel
 
    public Optional<Entity> getOccupant(Point pos)
    {
-      if (this.isOccupied(pos))
-      {
-         return Optional.of(this.getOccupancyCell(pos));
-      }
-      else
-      {
-         return Optional.empty();
-      }
+      return Optional.ofNullable(this.occupantAt(pos.pack()));
+   }
+
+   /*
+      The entity at pos, or null if the cell is empty or off the grid; for
+      hot paths that should not allocate an Optional per lookup.
+   */
+   public Entity occupantAt(long pos)
+   {
+      return this.withinBounds(pos) ? this.getOccupancyCell(pos) : null;
    }
 
    public Optional<PImage> getBackgroundImage(Point pos)
    {
-      if (this.withinBounds(pos))
+      return Optional.ofNullable(this.backgroundImageAt(pos.x, pos.y));
+   }
+
+   /* the background at a cell, or null outside the grid */
+   public Background backgroundAt(int x, int y)
+   {
+      return this.withinBounds(x, y) ? this.background.get(x, y) : null;
+   }
+
+   /*
+      The shared Background for a tile id; cells loaded with the same id
+      all point at this one instance.
+   */
+   public Background backgroundFor(String id, ImageStore imageStore)
+   {
+      return this.background.tileFor(id, imageStore);
+   }
+
+   /* the whole background as it is now, to write out on another thread */
+   public TileGrid.Snapshot snapshotBackground()
+   {
+      return this.background.snapshot();
+   }
+
+   public PImage backgroundImageAt(int x, int y)
+   {
+      if (this.withinBounds(x, y))
       {
-         return Optional.of(WorldView.getCurrentImage(this.getBackgroundCell(pos)));
+         return WorldView.getCurrentImage(this.background.get(x, y));
       }
       else
       {
-         return Optional.empty();
+         return null;
       }
    }
 
@@ -144,113 +288,307 @@ final class WorldModel
               resourceLimit, resourceLimit, actionPeriod, animationPeriod);
    }
 
-   private void setBackgroundCell(Point pos,
+   private void setBackgroundCell(long pos,
                                         Background background)
    {
-      this.background[pos.y][pos.x] = background;
+      this.setBackgroundCell(Point.x(pos), Point.y(pos), background);
+   }
+
+   private void setBackgroundCell(int x, int y, Background background)
+   {
+      this.background.set(x, y, background);
+      this.backgroundChanged(Point.pack(x, y));
    }
 
-   private void setOccupancyCell(Point pos,
+   private void backgroundChanged(long pos)
+   {
+      for (WorldListener listener : this.listeners)
+      {
+         listener.backgroundChanged(Point.x(pos), Point.y(pos));
+      }
+   }
+
+   /*
+      Sets the background from a savedRows by savedCols save's runs (or,
+      for older saves, cells), tiles giving the Background for each tile
+      number in the save.
+   */
+   public void readBackgroundRuns(ByteBuffer in, int savedRows, int savedCols,
+      Background[] tiles)
+      throws IOException
+   {
+      this.background.readRuns(in, savedRows, savedCols, tiles,
+              this::backgroundChanged);
+   }
+
+   public void readBackgroundCells(ByteBuffer in, int savedRows, int savedCols,
+      Background[] tiles)
+      throws IOException
+   {
+      this.background.readCells(in, savedRows, savedCols, tiles,
+              this::backgroundChanged);
+   }
+
+   private void setOccupancyCell(long pos,
                                        Entity entity)
    {
-      this.occupancy[pos.y][pos.x] = entity;
+      this.occupancy.set(Point.x(pos), Point.y(pos), entity);
    }
 
    private void setBackground(Point pos,
                                     Background background)
    {
-      if (this.withinBounds(pos))
+      if (this.withinBounds(pos.pack()))
+      {
+         this.setBackgroundCell(pos.pack(), background);
+      }
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      if (this.withinBounds(x, y))
       {
-         this.setBackgroundCell(pos, background);
+         this.setBackgroundCell(x, y, background);
       }
    }
 
-   private void removeEntityAt(Point pos)
+   private void removeEntityAt(long pos)
    {
       if (this.withinBounds(pos)
               && this.getOccupancyCell(pos) != null)
       {
          Entity entity = this.getOccupancyCell(pos);
 
+         this.entitiesLock.writeLock().lock();
+         try
+         {
+            this.entities.remove(entity);
+            this.spatialIndex.remove(entity, pos);
+            if (this.entityStore != null)
+            {
+               entity.detach();
+            }
+         }
+         finally
+         {
+            this.entitiesLock.writeLock().unlock();
+         }
+
          /* this moves the entity just outside of the grid for
             debugging purposes */
-            entity.position = new Point(-1, -1);
-         this.entities.remove(entity);
+         entity.setPosition(OFF_GRID);
          this.setOccupancyCell(pos, null);
+
+         if (isStatic(entity))
+         {
+            this.staticEntityRemoved(entity, pos);
+         }
+         for (WorldListener listener : this.listeners)
+         {
+            listener.entityRemoved(entity, pos);
+         }
       }
    }
 
    public void removeEntity(Entity entity)
    {
-      this.removeEntityAt(entity.position);
+      this.removeEntityAt(entity.getPackedPosition());
    }
 
    public void moveEntity(Entity entity, Point pos)
    {
-      Point oldPos = entity.position;
-      if (this.withinBounds(pos) && !pos.equals(oldPos))
+      this.moveEntity(entity, pos.pack());
+   }
+
+   public void moveEntity(Entity entity, long pos)
+   {
+      long oldPos = entity.getPackedPosition();
+      if (this.withinBounds(pos) && pos != oldPos)
       {
          this.setOccupancyCell(oldPos, null);
          this.removeEntityAt(pos);
          this.setOccupancyCell(pos, entity);
-         entity.position = pos;
+         entity.setPosition(pos);
+
+         this.entitiesLock.writeLock().lock();
+         try
+         {
+            this.spatialIndex.move(entity, oldPos, pos);
+         }
+         finally
+         {
+            this.entitiesLock.writeLock().unlock();
+         }
+
+         for (WorldListener listener : this.listeners)
+         {
+            listener.entityMoved(entity, oldPos, pos);
+         }
       }
    }
 
    public  void addEntity(Entity entity)
    {
-      if (this.withinBounds(entity.position))
+      if (this.withinBounds(entity.getPackedPosition()))
       {
-         this.setOccupancyCell(entity.position, entity);
-         this.entities.add(entity);
+         this.setOccupancyCell(entity.getPackedPosition(), entity);
+         boolean added;
+         this.entitiesLock.writeLock().lock();
+         try
+         {
+            added = this.entities.add(entity);
+            if (added)
+            {
+               entity.setSequence(this.nextSequence++);
+               this.spatialIndex.add(entity, entity.getPackedPosition());
+               if (this.entityStore != null)
+               {
+                  entity.attach(this.entityStore);
+               }
+            }
+         }
+         finally
+         {
+            this.entitiesLock.writeLock().unlock();
+         }
+
+         if (isStatic(entity))
+         {
+            this.invalidateFlowFields();
+         }
+         if (added)
+         {
+            for (WorldListener listener : this.listeners)
+            {
+               listener.entityAdded(entity);
+            }
+         }
       }
    }
 
-   private static Optional<Entity> nearestEntity(List<Entity> entities,
-                                                Point pos)
+   public Optional<Entity> findNearest(Point pos,
+                                              EntityKind kind)
+   {
+      return this.findNearest(pos.pack(), kind);
+   }
+
+   public Optional<Entity> findNearest(long pos, EntityKind kind)
    {
-      if (entities.isEmpty())
+      this.entitiesLock.readLock().lock();
+      try
       {
-         return Optional.empty();
+         return this.spatialIndex.findNearest(pos, kind);
       }
-      else
+      finally
       {
-         Entity nearest = entities.get(0);
-         int nearestDistance = nearest.position.distanceSquared(pos);
+         this.entitiesLock.readLock().unlock();
+      }
+   }
+
+   /*
+      Entities that never move on their own; they are what flow fields are
+      built around.
+   */
+   public static boolean isStatic(Entity entity)
+   {
+      return entity.getKind() == EntityKind.OBSTACLE ||
+              entity.getKind() == EntityKind.ATLANTIS;
+   }
 
-         for (Entity other : entities)
+   public Optional<Entity> findAdjacent(long pos, EntityKind kind)
+   {
+      int x = Point.x(pos);
+      int y = Point.y(pos);
+      long[] neighbours = {Point.pack(x - 1, y), Point.pack(x + 1, y),
+              Point.pack(x, y - 1), Point.pack(x, y + 1)};
+
+      for (long neighbour : neighbours)
+      {
+         Entity occupant = this.occupantAt(neighbour);
+         if (occupant != null && occupant.getKind() == kind)
          {
-            int otherDistance = other.position.distanceSquared(pos);
+            return Optional.of(occupant);
+         }
+      }
+
+      return Optional.empty();
+   }
 
-            if (otherDistance < nearestDistance)
+   /*
+      The flow field towards the given static kind, built on first use (so
+      after Functions.load) and rebuilt only once static entities change.
+      Fields are dense, so chunked maps go without one.
+   */
+   public Optional<FlowField> getFlowField(EntityKind kind)
+   {
+      if ((long)this.numRows * this.numCols > DENSE_GRID_MAX_CELLS)
+      {
+         return Optional.empty();
+      }
+
+      synchronized (this.flowFields)
+      {
+         FlowField field = this.flowFields.get(kind);
+
+         if (field == null)
+         {
+            List<Entity> targets = new ArrayList<>();
+            this.entitiesLock.readLock().lock();
+            try
             {
-               nearest = other;
-               nearestDistance = otherDistance;
+               for (Entity entity : this.entities)
+               {
+                  if (entity.getKind() == kind)
+                  {
+                     targets.add(entity);
+                  }
+               }
             }
+            finally
+            {
+               this.entitiesLock.readLock().unlock();
+            }
+
+            field = new FlowField(this, kind, targets);
+            this.flowFields.put(kind, field);
          }
 
-         return Optional.of(nearest);
+         return Optional.of(field);
       }
    }
 
-   public Optional<Entity> findNearest(Point pos,
-                                              EntityKind kind)
+   private void invalidateFlowFields()
    {
-      List<Entity> ofType = new LinkedList<>();
-      for (Entity entity : this.entities)
+      synchronized (this.flowFields)
       {
-         if (entity.getKind() == kind)
+         this.flowFields.clear();
+      }
+   }
+
+   /*
+      Removing an obstacle can only shorten paths, so existing fields are
+      replaced by patched copies; removing a target can lengthen them, so
+      those are rebuilt. Fields already handed out stay as they were.
+   */
+   private void staticEntityRemoved(Entity entity, long pos)
+   {
+      synchronized (this.flowFields)
+      {
+         if (entity.getKind() == EntityKind.OBSTACLE)
+         {
+            this.flowFields.replaceAll(
+                    (kind, field) -> field.withCellOpened(pos, this));
+         }
+         else
          {
-            ofType.add(entity);
+            this.flowFields.remove(entity.getKind());
          }
       }
-
-      return this.nearestEntity(ofType, pos);
    }
 
    private void tryAddEntity(Entity entity)
    {
-      if (this.isOccupied(entity.position))
+      if (this.isOccupied(entity.getPackedPosition()))
       {
          // arguably the wrong type of exception, but we are not
          // defining our own exceptions yet
@@ -261,16 +599,21 @@ final class WorldModel
    }
 
    public Optional<Point> findOpenAround(Point pos)
+   {
+      return this.findOpenAround(pos.pack());
+   }
+
+   public Optional<Point> findOpenAround(long pos)
    {
       for (int dy = -Functions.FISH_REACH; dy <= Functions.FISH_REACH; dy++)
       {
          for (int dx = -Functions.FISH_REACH; dx <= Functions.FISH_REACH; dx++)
          {
-            Point newPt = new Point(pos.x + dx, pos.y + dy);
+            long newPt = Point.pack(Point.x(pos) + dx, Point.y(pos) + dy);
             if (this.withinBounds(newPt) &&
                     !this.isOccupied(newPt))
             {
-               return Optional.of(newPt);
+               return Optional.of(Point.unpack(newPt));
             }
          }
       }
@@ -278,6 +621,60 @@ final class WorldModel
       return Optional.empty();
    }
 
+   /*
+      Creates and adds an entity from already-decoded fields, the way the
+      parseX methods do for a text line; used by the binary loaders. Returns
+      the added entity, or null for kinds that cannot be restored this way.
+   */
+   public Entity loadEntity(EntityKind kind, String id, Point pt,
+      int resourceLimit, int actionPeriod, int animationPeriod,
+      ImageStore imageStore)
+   {
+      Entity entity;
+      switch (kind)
+      {
+         case OCTO_NOT_FULL:
+            entity = WorldModel.createOctoNotFull(id, resourceLimit, pt,
+                    actionPeriod, animationPeriod,
+                    imageStore.getImageList(Functions.OCTO_KEY));
+            break;
+         case OCTO_FULL:
+            entity = WorldModel.createOctoFull(id, resourceLimit, pt,
+                    actionPeriod, animationPeriod,
+                    imageStore.getImageList(Functions.OCTO_KEY));
+            break;
+         case OBSTACLE:
+            entity = WorldModel.createObstacle(id, pt,
+                    imageStore.getImageList(Functions.OBSTACLE_KEY));
+            break;
+         case FISH:
+            entity = WorldModel.createFish(id, pt, actionPeriod,
+                    imageStore.getImageList(Functions.FISH_KEY));
+            break;
+         case ATLANTIS:
+            entity = WorldModel.createAtlantis(id, pt,
+                    imageStore.getImageList(Functions.ATLANTIS_KEY));
+            break;
+         case SGRASS:
+            entity = this.createSgrass(id, pt, actionPeriod,
+                    imageStore.getImageList(Functions.SGRASS_KEY));
+            break;
+         case CRAB:
+            entity = WorldModel.createCrab(id, pt, actionPeriod,
+                    animationPeriod, imageStore.getImageList(Functions.CRAB_KEY));
+            break;
+         case QUAKE:
+            entity = WorldModel.createQuake(pt,
+                    imageStore.getImageList(Functions.QUAKE_KEY));
+            break;
+         default:
+            return null;
+      }
+
+      this.tryAddEntity(entity);
+      return entity;
+   }
+
    public boolean parseSgrass(String [] properties,
                                      ImageStore imageStore)
    {
@@ -348,9 +745,8 @@ final class WorldModel
       {
          Point pt = new Point(Integer.parseInt(properties[Functions.BGND_COL]),
                  Integer.parseInt(properties[Functions.BGND_ROW]));
-         String id = properties[Functions.BGND_ID];
          this.setBackground(pt,
-                 new Background(id, imageStore.getImageList(id)));
+                 this.backgroundFor(properties[Functions.BGND_ID], imageStore));
       }
 
       return properties.length == Functions.BGND_NUM_PROPERTIES;
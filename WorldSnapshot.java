@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+WorldSnapshot: a compact binary form of world.sav that loads without parsing
+The file is a header (magic, version, rows, cols), a table of background
+tile ids, the grid of shorts indexing that table (-1 for cells left at the
+default background) as runs, and then fixed-layout entity records. Version 1
+files stored one short per cell instead of runs and still load. Loading maps
+the file read-only and walks the buffer straight into a WorldModel.
+ */
+
+final class WorldSnapshot
+{
+   public static final int MAGIC = 0x5657534e; /* "VWSN" */
+   public static final short VERSION = 2;
+   public static final short NO_TILE = TileGrid.NO_TILE;
+
+   private WorldSnapshot()
+   {
+   }
+
+   /*
+      True when the file starts with the snapshot magic number, so callers
+      can accept either format under the same name.
+   */
+   public static boolean isSnapshot(Path file)
+   {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+         return channel.read(header, 0) == Integer.BYTES
+                 && header.getInt(0) == MAGIC;
+      }
+      catch (IOException e)
+      {
+         return false;
+      }
+   }
+
+   public static void load(Path file, WorldModel world, ImageStore imageStore)
+      throws IOException
+   {
+      MappedByteBuffer buffer;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+
+      int magic = buffer.getInt();
+      short version = buffer.getShort();
+      if (magic != MAGIC || version < 1 || version > VERSION)
+      {
+         throw new IOException(String.format("%s is not a version %d world snapshot",
+                 file, VERSION));
+      }
+
+      int numRows = buffer.getInt();
+      int numCols = buffer.getInt();
+
+      Background[] tiles = new Background[buffer.getInt()];
+      for (int i = 0; i < tiles.length; i++)
+      {
+         tiles[i] = world.backgroundFor(readString(buffer), imageStore);
+      }
+
+      if (version == 1)
+      {
+         world.readBackgroundCells(buffer, numRows, numCols, tiles);
+      }
+      else
+      {
+         world.readBackgroundRuns(buffer, numRows, numCols, tiles);
+      }
+
+      EntityKind[] kinds = EntityKind.values();
+      int entityCount = buffer.getInt();
+      for (int i = 0; i < entityCount; i++)
+      {
+         EntityKind kind = kinds[buffer.get()];
+         String id = readString(buffer);
+         Point pt = new Point(buffer.getInt(), buffer.getInt());
+         int resourceLimit = buffer.getInt();
+         int actionPeriod = buffer.getInt();
+         int animationPeriod = buffer.getInt();
+
+         try
+         {
+            if (world.loadEntity(kind, id, pt, resourceLimit, actionPeriod,
+                    animationPeriod, imageStore) == null)
+            {
+               System.err.println(String.format("invalid entity %d", i));
+            }
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(String.format("issue on entity %d: %s",
+                    i, e.getMessage()));
+         }
+      }
+   }
+
+   /*
+      Reads a world.sav text file and writes the equivalent snapshot for a
+      world of the given size. Lines the text loader would reject are
+      reported the same way and left out.
+   */
+   public static void convert(InputStream in, Path out, int numRows,
+      int numCols) throws IOException
+   {
+      /* cells not in the file stay at the null default, saved as NO_TILE */
+      TileGrid tiles = new TileGrid(numRows, numCols, null);
+      Map<String, Background> placeholders = new HashMap<>();
+
+      ByteArrayOutputStream entityBytes = new ByteArrayOutputStream();
+      DataOutputStream entities = new DataOutputStream(entityBytes);
+      int[] entityCount = new int[1];
+
+      Functions.load(in, new Functions.LoadTarget()
+      {
+         public void addBackground(int x, int y, String id)
+         {
+            if (x >= 0 && x < numCols && y >= 0 && y < numRows)
+            {
+               tiles.set(x, y, placeholders.computeIfAbsent(id,
+                       key -> new Background(key, null)));
+            }
+         }
+
+         public boolean addEntity(EntityKind kind, String id, int x, int y,
+            int resourceLimit, int actionPeriod, int animationPeriod)
+         {
+            try
+            {
+               entities.writeByte(kind.ordinal());
+               writeString(entities, id);
+               entities.writeInt(x);
+               entities.writeInt(y);
+               entities.writeInt(resourceLimit);
+               entities.writeInt(actionPeriod);
+               entities.writeInt(animationPeriod);
+            }
+            catch (IOException e)
+            {
+               /* a ByteArrayOutputStream does not fail */
+               throw new UncheckedIOException(e);
+            }
+            entityCount[0]++;
+            return true;
+         }
+      });
+
+      try (DataOutputStream file = new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(out))))
+      {
+         file.writeInt(MAGIC);
+         file.writeShort(VERSION);
+         file.writeInt(numRows);
+         file.writeInt(numCols);
+         tiles.writeRuns(file);
+         file.writeInt(entityCount[0]);
+         entityBytes.writeTo(file);
+      }
+   }
+
+   private static void writeString(OutputStream out, String value)
+      throws IOException
+   {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.write(bytes.length >>> 8);
+      out.write(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(ByteBuffer buffer)
+   {
+      byte[] bytes = new byte[buffer.getShort() & 0xffff];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -1,11 +1,20 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
 import processing.core.PApplet;
 import processing.core.PImage;
 
-import java.util.Optional;
-
 /*
 WorldView ideally mostly controls drawing the current part of the whole world
 that we can see based on the viewport
+With incremental drawing on, the view relies on the sketch keeping what was
+drawn last frame (nothing clears it) and only repaints the cells a
+DirtyTiles tracker reports, plus those whose entity frame differs from the
+one drawn last, as animation frames change without telling the world. The
+whole view is repainted after a shift.
+With a BackgroundCache the background is drawn from its pre-rendered chunks.
+When the simulation runs on a thread of its own, entities are drawn from the
+RenderSnapshot it last published rather than from the world it is changing.
 */
 
 final class WorldView
@@ -15,6 +24,15 @@ final class WorldView
    private final int tileWidth;
    private final int tileHeight;
    private final Viewport viewport;
+   /* null to draw each frame from its own image */
+   private TextureAtlas atlas;
+   /* all null unless incremental drawing is on */
+   private DirtyTiles dirtyTiles;
+   private PImage[] drawnEntities;
+   private PImage[] entityImages;
+   private BitSet repaint;
+   /* null to draw the background one cell at a time */
+   private BackgroundCache backgroundCache;
 
    public WorldView(int numRows, int numCols, PApplet screen, WorldModel world,
       int tileWidth, int tileHeight)
@@ -26,6 +44,63 @@ final class WorldView
       this.viewport = new Viewport(numRows, numCols);
    }
 
+   /*
+      Draws frames from the atlas pages from now on; frames that are not
+      in it are still drawn on their own.
+   */
+   public void setAtlas(TextureAtlas atlas)
+   {
+      this.atlas = atlas;
+   }
+
+   /*
+      Repaints only what changed from now on; the view listens to the world
+      for changes until this is turned off again.
+   */
+   public void setIncremental(boolean incremental)
+   {
+      if (incremental && this.dirtyTiles == null)
+      {
+         int cells = this.viewport.getNumRows() * this.viewport.getNumCols();
+         this.dirtyTiles = new DirtyTiles(this.viewport);
+         this.drawnEntities = new PImage[cells];
+         this.entityImages = new PImage[cells];
+         this.repaint = new BitSet(cells);
+         this.world.addListener(this.dirtyTiles);
+      }
+      else if (!incremental && this.dirtyTiles != null)
+      {
+         this.world.removeListener(this.dirtyTiles);
+         this.dirtyTiles = null;
+         this.drawnEntities = null;
+         this.entityImages = null;
+         this.repaint = null;
+      }
+   }
+
+   /*
+      Draws the background from chunks rendered ahead of time, which the
+      view keeps up to date by listening to the world.
+   */
+   public void setCachedBackground(boolean cached)
+   {
+      if (cached && this.backgroundCache == null)
+      {
+         this.backgroundCache = new BackgroundCache(this.world, this.tileWidth,
+                 this.tileHeight, BackgroundCache.DEFAULT_MAX_CHUNKS);
+         this.world.addListener(this.backgroundCache);
+      }
+      else if (!cached && this.backgroundCache != null)
+      {
+         this.world.removeListener(this.backgroundCache);
+         this.backgroundCache = null;
+      }
+   }
+
+   public BackgroundCache getBackgroundCache() {
+      return backgroundCache;
+   }
+
    public void shiftView(int colDelta, int rowDelta)
    {
       int newCol = Functions.clamp(this.viewport.getCol() + colDelta, 0,
@@ -34,6 +109,10 @@ final class WorldView
               this.world.getNumRows() - this.viewport.getNumRows());
 
       this.viewport.shift(newCol, newRow);
+      if (this.dirtyTiles != null)
+      {
+         this.dirtyTiles.shift(newCol, newRow);
+      }
    }
 
    public static PImage getCurrentImage(Object entity)
@@ -55,40 +134,205 @@ final class WorldView
       }
    }
 
-   private  void drawEntities()
+   /* an entity's frame at a time, for animations derived from the clock */
+   public static PImage getCurrentImage(Entity entity, long time)
+   {
+      return entity.getImages().get(entity.getImageIndex(time));
+   }
+
+   /*
+      Visits the position and frame of the entities in view, from the
+      snapshot if there is one and from the world otherwise; only the
+      entities in view are visited, however many the world holds.
+   */
+   private void forEachEntityInView(RenderSnapshot snapshot, long time,
+      RenderSnapshot.ImageVisitor visitor)
+   {
+      if (snapshot != null)
+      {
+         snapshot.forEachIn(this.viewport.getCol(), this.viewport.getRow(),
+                 this.viewport.getNumCols(), this.viewport.getNumRows(), time,
+                 visitor);
+         return;
+      }
+
+      this.world.forEachEntityIn(this.viewport.getCol(), this.viewport.getRow(),
+              this.viewport.getNumCols(), this.viewport.getNumRows(),
+              entity -> visitor.visit(entity.getPackedPosition(),
+                      getCurrentImage(entity, time)));
+   }
+
+   private  void drawEntities(RenderSnapshot snapshot, long time)
+   {
+      this.forEachEntityInView(snapshot, time, this::drawEntityImage);
+   }
+
+   private void drawEntityImage(long position, PImage image)
+   {
+      long viewPoint = this.viewport.worldToViewportPacked(Point.x(position),
+              Point.y(position));
+      this.drawImage(image, Point.x(viewPoint) * this.tileWidth,
+              Point.y(viewPoint) * this.tileHeight);
+   }
+
+   private void drawImage(PImage image, int x, int y)
    {
-      for (Entity entity : this.world.getEntities())
+      TextureAtlas.Region region =
+              this.atlas == null ? null : this.atlas.regionFor(image);
+      if (region == null)
       {
-         Point pos = entity.position;
+         this.screen.image(image, x, y);
+      }
+      else
+      {
+         this.screen.image(region.page, x, y, region.width, region.height,
+                 region.x, region.y, region.x + region.width,
+                 region.y + region.height);
+      }
+   }
 
-         if (this.viewport.contains(pos))
+   /* draws what the viewport shows at the given time on the world's clock */
+   public void drawViewport(long time)
+   {
+      this.drawViewport(null, time);
+   }
+
+   /*
+      Draws the entities as a snapshot has them, or as the world has them
+      for a null snapshot.
+   */
+   public void drawViewport(RenderSnapshot snapshot, long time)
+   {
+      if (this.dirtyTiles != null)
+      {
+         this.drawChanges(snapshot, time);
+         return;
+      }
+      drawBackground();
+      drawEntities(snapshot, time);
+   }
+
+   /*
+      Repaints the dirty cells over last frame's drawing, background first
+      and then the entity on top.
+   */
+   private void drawChanges(RenderSnapshot snapshot, long time)
+   {
+      boolean all = this.dirtyTiles.drainInto(this.repaint);
+      if (all)
+      {
+         this.drawBackground();
+      }
+      Arrays.fill(this.entityImages, null);
+      this.forEachEntityInView(snapshot, time, this::recordEntityImage);
+
+      int numCols = this.viewport.getNumCols();
+      for (int cell = 0; cell < this.entityImages.length; cell++)
+      {
+         if (all || this.entityImages[cell] != this.drawnEntities[cell])
          {
-            Point viewPoint = this.viewport.worldToViewport(pos.x, pos.y);
-            this.screen.image(getCurrentImage(entity),
-                    viewPoint.x * this.tileWidth, viewPoint.y * this.tileHeight);
+            this.repaint.set(cell);
          }
       }
+
+      for (int cell = this.repaint.nextSetBit(0); cell >= 0;
+           cell = this.repaint.nextSetBit(cell + 1))
+      {
+         int col = cell % numCols;
+         int row = cell / numCols;
+         if (!all)
+         {
+            this.drawBackgroundCell(col, row);
+         }
+         if (this.entityImages[cell] != null)
+         {
+            this.drawImage(this.entityImages[cell],
+                    col * this.tileWidth, row * this.tileHeight);
+         }
+         this.drawnEntities[cell] = this.entityImages[cell];
+      }
+      this.repaint.clear();
    }
 
-   public void drawViewport()
+   private void recordEntityImage(long position, PImage image)
    {
-      drawBackground();
-      drawEntities();
+      int x = Point.x(position);
+      int y = Point.y(position);
+
+      if (this.viewport.contains(x, y))
+      {
+         this.entityImages[(y - this.viewport.getRow()) * this.viewport.getNumCols()
+                 + x - this.viewport.getCol()] = image;
+      }
    }
 
    private void drawBackground()
    {
+      if (this.backgroundCache != null)
+      {
+         this.drawBackgroundArea(0, 0, this.viewport.getNumCols(),
+                 this.viewport.getNumRows());
+         return;
+      }
+
       for (int row = 0; row < this.viewport.getNumRows(); row++)
       {
          for (int col = 0; col < this.viewport.getNumCols(); col++)
          {
-            Point worldPoint = this.viewport.viewportToWorld(col, row);
-            Optional<PImage> image = world.getBackgroundImage(worldPoint);
-            if (image.isPresent())
-            {
-               this.screen.image(image.get(), col * this.tileWidth,
-                       row * this.tileHeight);
-            }
+            this.drawBackgroundCell(col, row);
+         }
+      }
+   }
+
+   private void drawBackgroundCell(int col, int row)
+   {
+      if (this.backgroundCache != null)
+      {
+         this.drawBackgroundArea(col, row, 1, 1);
+         return;
+      }
+
+      long worldPoint = this.viewport.viewportToWorldPacked(col, row);
+      PImage image = world.backgroundImageAt(Point.x(worldPoint),
+              Point.y(worldPoint));
+      if (image != null)
+      {
+         this.drawImage(image, col * this.tileWidth, row * this.tileHeight);
+      }
+   }
+
+   /*
+      Draws the cached background of a rectangle of viewport cells, one
+      piece of each chunk it overlaps.
+   */
+   private void drawBackgroundArea(int col, int row, int numCols, int numRows)
+   {
+      int chunkWidth = this.backgroundCache.getChunkWidth();
+      int chunkHeight = this.backgroundCache.getChunkHeight();
+      /* the area in world pixels */
+      int left = (this.viewport.getCol() + col) * this.tileWidth;
+      int top = (this.viewport.getRow() + row) * this.tileHeight;
+      int right = left + numCols * this.tileWidth;
+      int bottom = top + numRows * this.tileHeight;
+      int viewLeft = this.viewport.getCol() * this.tileWidth;
+      int viewTop = this.viewport.getRow() * this.tileHeight;
+
+      for (int chunkRow = top / chunkHeight; chunkRow * chunkHeight < bottom;
+           chunkRow++)
+      {
+         int chunkTop = chunkRow * chunkHeight;
+         int y0 = Math.max(top, chunkTop);
+         int y1 = Math.min(bottom, chunkTop + chunkHeight);
+         for (int chunkCol = left / chunkWidth; chunkCol * chunkWidth < right;
+              chunkCol++)
+         {
+            int chunkLeft = chunkCol * chunkWidth;
+            int x0 = Math.max(left, chunkLeft);
+            int x1 = Math.min(right, chunkLeft + chunkWidth);
+            this.screen.image(this.backgroundCache.chunkAt(chunkCol, chunkRow),
+                    x0 - viewLeft, y0 - viewTop, x1 - x0, y1 - y0,
+                    x0 - chunkLeft, y0 - chunkTop, x1 - chunkLeft,
+                    y1 - chunkTop);
          }
       }
    }
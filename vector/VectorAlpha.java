@@ -0,0 +1,36 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+VectorAlpha: the colour keying loop of Functions.setAlpha with the JDK
+Vector API, comparing and replacing a full vector of pixels per step
+This needs the incubating jdk.incubator.vector module, so it lives outside
+the main sources and is built on its own, after them:
+   javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> vector/VectorAlpha.java
+and used when the program runs with --add-modules jdk.incubator.vector.
+Functions loads it by name and keeps its scalar loop if the class is not
+there or the module is not available.
+ */
+
+final class VectorAlpha
+   implements PixelKeyer
+{
+   private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+   public void key(int[] pixels, int keyColor, int replacement)
+   {
+      int i = 0;
+      int bound = SPECIES.loopBound(pixels.length);
+      for (; i < bound; i += SPECIES.length())
+      {
+         IntVector pixel = IntVector.fromArray(SPECIES, pixels, i);
+         VectorMask<Integer> match = pixel.and(Functions.COLOR_MASK).eq(keyColor);
+         if (match.anyTrue())
+         {
+            pixel.blend(replacement, match).intoArray(pixels, i);
+         }
+      }
+      Functions.keyPixels(pixels, i, keyColor, replacement);
+   }
+}